@@ -0,0 +1,71 @@
+package com.project.reward.simulator.benchmark;
+
+import com.project.reward.simulator.controller.DatasetGenerator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic dataset of a benchmark, written by the same generator as the GENERATE command into a
+ * temporary directory, with its partners registered.
+ */
+final class Dataset {
+
+    private final Path dir;
+
+    private final long rows;
+
+    /**
+     * Function to generate a dataset and register its partners
+     * @param partners
+     * @param contracts
+     * @param seed
+     * @param depth
+     * Number of levels of the partner hierarchy, which sets the fan-out
+     * @param firstYear
+     * @param years
+     * @return Dataset
+     * @throws Exception
+     */
+    static Dataset generate(int partners, long contracts, long seed, int depth, int firstYear, int years)
+            throws Exception {
+        DatasetGenerator generator = new DatasetGenerator(partners, contracts, seed, depth, firstYear, years);
+        Path dir = Files.createTempDirectory("benchmark");
+        long rows = generator.generate(dir.toString());
+        generator.registerPartners();
+        return new Dataset(dir, rows);
+    }
+
+    private Dataset(Path dir, long rows) {
+        this.dir = dir;
+        this.rows = rows;
+    }
+
+    String getContractsFile() {
+        return dir.resolve(DatasetGenerator.CONTRACTS_FILE).toString();
+    }
+
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * Function to get the path of a file in the dataset's directory, which is deleted with it
+     * @param name
+     * @return String
+     */
+    String getFile(String name) {
+        return dir.resolve(name).toString();
+    }
+
+    void delete() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
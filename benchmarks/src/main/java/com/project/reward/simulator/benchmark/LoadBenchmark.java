@@ -0,0 +1,83 @@
+package com.project.reward.simulator.benchmark;
+
+import com.project.reward.simulator.controller.ContractHandler;
+import com.project.reward.simulator.controller.ContractHandler.LoadMode;
+import com.project.reward.simulator.controller.SnapshotHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of ContractHandler.loadContracts on a generated contract file, in every load mode.
+ * Every load starts again from the registered partners only, restored from a snapshot which is not measured.
+ * A load is long enough to be measured one at a time; divide the rows of the dataset (printed by the
+ * setup) by the time of a load for the rows per second. Run with -prof gc for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class LoadBenchmark {
+
+    private static final String PARTNERS_SNAPSHOT = "partners.snapshot";
+
+    @Param({"10000"})
+    public int partners;
+
+    @Param({"6"})
+    public int depth;
+
+    @Param({"1000000"})
+    public long contracts;
+
+    @Param({"2005"})
+    public int firstYear;
+
+    @Param({"10"})
+    public int years;
+
+    @Param({"42"})
+    public long seed;
+
+    @Param({"SIMPLE", "STREAMING", "PARALLEL", "PARTITIONED"})
+    public LoadMode mode;
+
+    private Dataset dataset;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        dataset = Dataset.generate(partners, contracts, seed, depth, firstYear, years);
+        SnapshotHandler.getInstance().saveSnapshot(dataset.getFile(PARTNERS_SNAPSHOT));
+        System.out.println("Rows per load: " + dataset.getRows());
+    }
+
+    @Setup(Level.Invocation)
+    public void restorePartners() throws Exception {
+        SnapshotHandler.getInstance().restoreSnapshot(dataset.getFile(PARTNERS_SNAPSHOT));
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        dataset.delete();
+    }
+
+    @Benchmark
+    public int loadContracts() throws Exception {
+        ContractHandler.getInstance().loadContracts(dataset.getContractsFile(), mode);
+        return ContractHandler.getInstance().getContractCount();
+    }
+}
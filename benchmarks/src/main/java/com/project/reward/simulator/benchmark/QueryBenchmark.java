@@ -0,0 +1,136 @@
+package com.project.reward.simulator.benchmark;
+
+import com.project.reward.simulator.controller.ContractHandler;
+import com.project.reward.simulator.controller.ContractHandler.LoadMode;
+import com.project.reward.simulator.controller.QueryCache;
+import com.project.reward.simulator.controller.Statistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the LEVEL, REWARDS and ALL_REWARDS queries (Statistics.getPartnerLevel, getPartnerReward
+ * and getPartnerAllReward) on a generated dataset, with random partners and quarters.
+ * Reported as throughput and as sampled latencies with percentiles, run with -prof gc for the allocation rate.
+ *
+ * LEVEL and REWARDS run with and without the query cache (see {@link CacheState}): every thread goes over
+ * the same queries again and again, so with the cache they mostly measure cache hits.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QueryBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class DataState {
+
+        @Param({"10000"})
+        public int partners;
+
+        @Param({"6"})
+        public int depth;
+
+        @Param({"1000000"})
+        public long contracts;
+
+        @Param({"2005"})
+        public int firstYear;
+
+        @Param({"10"})
+        public int years;
+
+        @Param({"42"})
+        public long seed;
+
+        // Number of distinct queries
+        @Param({"100000"})
+        public int queries;
+
+        private Dataset dataset;
+
+        private long[] partnerIds;
+
+        private int[] queryYears;
+
+        private int[] quarters;
+
+        @Setup(Level.Trial)
+        public void load() throws Exception {
+            dataset = Dataset.generate(partners, contracts, seed, depth, firstYear, years);
+            ContractHandler.getInstance().loadContracts(dataset.getContractsFile(), LoadMode.STREAMING);
+
+            Random random = new Random(seed);
+            partnerIds = new long[queries];
+            queryYears = new int[queries];
+            quarters = new int[queries];
+            for (int i = 0; i < queries; i++) {
+                partnerIds[i] = 1 + random.nextInt(partners);
+                // Contracts count for 8 years, so the quarters after the span are interesting too
+                queryYears[i] = firstYear + random.nextInt(years + 8);
+                quarters[i] = 1 + random.nextInt(4);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws Exception {
+            dataset.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CacheState {
+
+        @Param({"false", "true"})
+        public boolean cached;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            QueryCache.getInstance().setBypassed(!cached);
+        }
+    }
+
+    // Next query of a thread
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next = 0;
+
+        private int next(DataState data) {
+            int query = next;
+            next = next + 1 == data.queries ? 0 : next + 1;
+            return query;
+        }
+    }
+
+    @Benchmark
+    public String getPartnerLevel(DataState data, CacheState cache, Cursor cursor) throws Exception {
+        int i = cursor.next(data);
+        return Statistics.getPartnerLevel(data.partnerIds[i], data.queryYears[i], data.quarters[i]);
+    }
+
+    @Benchmark
+    public long getPartnerReward(DataState data, CacheState cache, Cursor cursor) throws Exception {
+        int i = cursor.next(data);
+        return Statistics.getPartnerReward(data.partnerIds[i], data.queryYears[i], data.quarters[i]);
+    }
+
+    @Benchmark
+    public String getPartnerAllReward(DataState data, Cursor cursor) throws Exception {
+        return Statistics.getPartnerAllReward(data.partnerIds[cursor.next(data)]);
+    }
+}
@@ -1,12 +1,30 @@
 package com.project.reward.simulator;
 
 import com.project.reward.simulator.cli.CommandHandler;
+import com.project.reward.simulator.cli.QueryServer;
+
+import java.io.FileInputStream;
 
 public class Main {
 
     public static void main(String[] args){
         CommandHandler handler = new CommandHandler();
         try {
+            // Batch mode: run the commands of a file (or stdin) and write plain output
+            if (args.length > 0 && args[0].equals("--batch")) {
+                handler.runBatch(args.length > 1 ? new FileInputStream(args[1]) : System.in, System.out);
+                return;
+            }
+            // Server mode: run the commands of an optional file, then serve queries over HTTP on localhost
+            if (args.length > 0 && args[0].equals("--server")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+                if (args.length > 2) {
+                    handler.runBatch(new FileInputStream(args[2]), System.out);
+                }
+                port = new QueryServer(handler).start(port);
+                System.out.println("Listening on http://localhost:" + port);
+                return;
+            }
             // Replace runTest() with run() to get the core command handler
             handler.runTest();
         } catch (Exception ex) {
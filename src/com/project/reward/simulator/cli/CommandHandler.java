@@ -1,18 +1,56 @@
 package com.project.reward.simulator.cli;
 
 import com.project.reward.simulator.controller.ContractHandler;
+import com.project.reward.simulator.controller.ContractIngestion;
+import com.project.reward.simulator.controller.DatasetGenerator;
+import com.project.reward.simulator.controller.JournalHandler;
+import com.project.reward.simulator.controller.Metrics;
 import com.project.reward.simulator.controller.PartnerHandler;
+import com.project.reward.simulator.controller.QueryCache;
+import com.project.reward.simulator.controller.QueryView;
+import com.project.reward.simulator.controller.RewardRecords;
+import com.project.reward.simulator.controller.RewardRules;
+import com.project.reward.simulator.controller.SnapshotHandler;
 import com.project.reward.simulator.controller.Statistics;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.IntStream;
 
 // Simple interface to be able to handle incoming commands easily
 interface Command {
-    Integer runCommand(String[] args);
+    Integer runCommand(String[] args, Output out);
+}
+
+// Read-only commands, which run on a view of the data and can run in parallel
+interface Query {
+    Integer runQuery(String[] args, Output out, QueryView view);
+}
+
+// Where the messages of a command go
+interface Output {
+    void info(String msg);
+
+    // Info message written as it's produced, instead of being built first
+    void info(InfoWriter writer) throws IOException;
+
+    void error(String msg);
+}
+
+// Writes a long info message to the sink of an Output
+interface InfoWriter {
+    void write(Appendable out) throws IOException;
 }
 
 public class CommandHandler {
@@ -21,27 +59,64 @@ public class CommandHandler {
     public final String ANSI_RED = "\u001B[31m";
     public final String ANSI_YELLOW = "\u001B[33m";
 
+    // Maximum number of consecutive queries that a batch evaluates together
+    private static final int MAX_BATCH_QUERIES = 1 << 14;
+
     private final HashMap<String, Command> commands = new HashMap<>() {
         {
-            put("REGISTER", args -> handleRegister(args));
-            put("LOAD", args -> handleLoad(args));
-            put("LEVEL", args -> handleLevel(args));
-            put("REWARDS", args -> handleRewards(args));
-            put("ALL_REWARDS", args -> handleAllRewards(args));
+            put("REGISTER", (args, out) -> handleRegister(args, out));
+            put("LOAD", (args, out) -> handleLoad(args, out));
+            put("LOAD_PARTNERS", (args, out) -> handleLoadPartners(args, out));
+            put("SNAPSHOT", (args, out) -> handleSnapshot(args, out));
+            put("RESTORE", (args, out) -> handleRestore(args, out));
+            put("JOURNAL", (args, out) -> handleJournal(args, out));
+            put("CHECKPOINT", (args, out) -> handleCheckpoint(args, out));
+            put("GENERATE", (args, out) -> handleGenerate(args, out));
+            put("CACHE", (args, out) -> handleCache(args, out));
+            put("ALL_PARTNERS_REWARDS", (args, out) -> handleAllPartnersRewards(args, out));
+            put("WHAT_IF", (args, out) -> handleWhatIf(args, out));
+            put("STATS", (args, out) -> handleStats(args, out));
+            put("INGEST", (args, out) -> handleIngest(args, out));
         }
     };
 
-    private void logError(String msg) {
-        System.out.println(ANSI_RED + msg + ANSI_RESET);
-    }
+    private final HashMap<String, Query> queries = new HashMap<>() {
+        {
+            put("LEVEL", (args, out, view) -> handleLevel(args, out, view));
+            put("REWARDS", (args, out, view) -> handleRewards(args, out, view));
+            put("ALL_REWARDS", (args, out, view) -> handleAllRewards(args, out, view));
+            put("LEVEL_HISTORY", (args, out, view) -> handleLevelHistory(args, out, view));
+        }
+    };
 
-    private void logInfo(String msg) {
-        System.out.println(ANSI_YELLOW + msg + ANSI_RESET);
-    }
+    private final Output console = new Output() {
+        @Override
+        public void info(String msg) {
+            System.out.println(ANSI_YELLOW + msg + ANSI_RESET);
+        }
+
+        @Override
+        public void info(InfoWriter writer) throws IOException {
+            BufferedWriter stdout = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            stdout.write(ANSI_YELLOW);
+            try {
+                writer.write(stdout);
+            } finally {
+                stdout.write(ANSI_RESET);
+                stdout.write(System.lineSeparator());
+                stdout.flush();
+            }
+        }
 
-    private Integer handleRegister(String[] args) {
+        @Override
+        public void error(String msg) {
+            System.out.println(ANSI_RED + msg + ANSI_RESET);
+        }
+    };
+
+    private Integer handleRegister(String[] args, Output out) {
         if (args.length < 1 || args.length > 2) {
-            logError("command REGISTER takes only 1 or 2 arguments.");
+            out.error("command REGISTER takes only 1 or 2 arguments.");
             return 0;
         }
         try {
@@ -54,28 +129,46 @@ public class CommandHandler {
             PartnerHandler.getInstance().registerPartner(partnerId, parentPartnerId);
             return 1;
         } catch (Exception ex) {
-            logError("Registration was not successful: " + ex.getMessage());
+            out.error("Registration was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleLoad(String[] args, Output out) {
+        if (args.length < 1 || args.length > 2) {
+            out.error("command LOAD takes only 1 or 2 arguments.");
+            return 0;
+        }
+        try {
+            ContractHandler.LoadMode mode = ContractHandler.LoadMode.STREAMING;
+            if (args.length == 2) {
+                mode = ContractHandler.LoadMode.valueOf(args[1]);
+            }
+            ContractHandler.getInstance().loadContracts(args[0], mode);
+            return 1;
+        } catch (Exception ex) {
+            out.error("Loading was not successful: " + ex.getMessage());
             return 0;
         }
     }
 
-    private Integer handleLoad(String[] args) {
+    private Integer handleLoadPartners(String[] args, Output out) {
         if (args.length != 1) {
-            logError("command LOAD takes exactly 1 argument");
+            out.error("command LOAD_PARTNERS takes exactly 1 arguments.");
             return 0;
         }
         try {
-            ContractHandler.getInstance().loadContracts(args[0]);
+            PartnerHandler.getInstance().loadPartners(args[0]);
             return 1;
         } catch (Exception ex) {
-            logError("Loading was not successful: " + ex.getMessage());
+            out.error("Loading partners was not successful: " + ex.getMessage());
             return 0;
         }
     }
 
-    private Integer handleLevel(String[] args) {
+    private Integer handleLevel(String[] args, Output out, QueryView view) {
         if (args.length != 3) {
-            logError("command LEVEL takes exactly 3 arguments.");
+            out.error("command LEVEL takes exactly 3 arguments.");
             return 0;
         }
         try {
@@ -84,27 +177,27 @@ public class CommandHandler {
             partnerId = Long.parseLong(args[0]);
             year = Integer.parseInt(args[1]);
             if(year < 1000 || year > 5000) {
-                logError("Invalid year.");
+                out.error("Invalid year.");
                 return 0;
             }
             quarter = Integer.parseInt(args[2]);
             if(quarter < 1 || quarter > 4) {
-                logError("Invalid quarter.");
+                out.error("Invalid quarter.");
                 return 0;
             }
 
-            String level = Statistics.getPartnerLevel(partnerId, year, quarter);
-            logInfo(String.format("%d --> '%s'", partnerId, level));
+            String level = Statistics.getPartnerLevel(view, partnerId, year, quarter);
+            out.info(String.format("%d --> '%s'", partnerId, level));
             return 1;
         } catch (Exception ex) {
-            logError("Fetching level was not successful: " + ex.getMessage());
+            out.error("Fetching level was not successful: " + ex.getMessage());
             return 0;
         }
     }
 
-    private Integer handleRewards(String[] args) {
+    private Integer handleRewards(String[] args, Output out, QueryView view) {
         if (args.length != 3) {
-            logError("command REWARDS takes exactly 3 arguments.");
+            out.error("command REWARDS takes exactly 3 arguments.");
             return 0;
         }
         try {
@@ -113,55 +206,302 @@ public class CommandHandler {
             partnerId = Long.parseLong(args[0]);
             year = Integer.parseInt(args[1]);
             if(year < 1000 || year > 5000) {
-                logError("Invalid year.");
+                out.error("Invalid year.");
                 return 0;
             }
             quarter = Integer.parseInt(args[2]);
             if(quarter < 1 || quarter > 4) {
-                logError("Invalid quarter.");
+                out.error("Invalid quarter.");
                 return 0;
             }
 
-            long reward = Statistics.getPartnerReward(partnerId, year, quarter);
-            logInfo(String.format("%d --> %d €", partnerId, reward));
+            long reward = Statistics.getPartnerReward(view, partnerId, year, quarter);
+            out.info(String.format("%d --> %d €", partnerId, reward));
 
             return 1;
         } catch (Exception ex) {
-            logError("Calculating reward was not successful: " + ex.getMessage());
+            out.error("Calculating reward was not successful: " + ex.getMessage());
             return 0;
         }
     }
 
-    private Integer handleAllRewards(String[] args) {
+    private Integer handleAllRewards(String[] args, Output out, QueryView view) {
         if (args.length != 1) {
-            logError("command REWARDS takes exactly 1 arguments.");
+            out.error("command REWARDS takes exactly 1 arguments.");
+            return 0;
+        }
+        try {
+            long partnerId;
+            partnerId = Long.parseLong(args[0]);
+
+            RewardRecords records = Statistics.streamPartnerAllReward(view, partnerId);
+            out.info(records::writeTo);
+
+            return 1;
+        } catch (Exception ex) {
+            out.error("Calculating all rewards was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleLevelHistory(String[] args, Output out, QueryView view) {
+        if (args.length != 1 && args.length != 5) {
+            out.error("command LEVEL_HISTORY takes 1 or 5 arguments: partner [from year] [from quarter] [to year] [to quarter].");
             return 0;
         }
         try {
             long partnerId;
             partnerId = Long.parseLong(args[0]);
+            if (args.length == 1) {
+                out.info(Statistics.getPartnerLevelHistory(view, partnerId));
+                return 1;
+            }
+
+            int[] yearsAndQuarters = new int[4];
+            for (int i = 0; i < 4; i++) {
+                yearsAndQuarters[i] = Integer.parseInt(args[i + 1]);
+                if (i % 2 == 0 && (yearsAndQuarters[i] < 1000 || yearsAndQuarters[i] > 5000)) {
+                    out.error("Invalid year.");
+                    return 0;
+                }
+                if (i % 2 == 1 && (yearsAndQuarters[i] < 1 || yearsAndQuarters[i] > 4)) {
+                    out.error("Invalid quarter.");
+                    return 0;
+                }
+            }
+
+            String res = Statistics.getPartnerLevelHistory(view, partnerId, yearsAndQuarters[0], yearsAndQuarters[1],
+                    yearsAndQuarters[2], yearsAndQuarters[3]);
+            out.info(res);
+            return 1;
+        } catch (Exception ex) {
+            out.error("Fetching level history was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleAllPartnersRewards(String[] args, Output out) {
+        if (args.length != 3) {
+            out.error("command ALL_PARTNERS_REWARDS takes exactly 3 arguments: year quarter file.");
+            return 0;
+        }
+        try {
+            int year, quarter;
+            year = Integer.parseInt(args[0]);
+            if(year < 1000 || year > 5000) {
+                out.error("Invalid year.");
+                return 0;
+            }
+            quarter = Integer.parseInt(args[1]);
+            if(quarter < 1 || quarter > 4) {
+                out.error("Invalid quarter.");
+                return 0;
+            }
+
+            int partners = Statistics.writeAllPartnersRewards(year, quarter, args[2]);
+            out.info(String.format("Wrote level and reward of %d partners to %s", partners, args[2]));
+            return 1;
+        } catch (Exception ex) {
+            out.error("Calculating rewards of all partners was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
 
-            String res = Statistics.getPartnerAllReward(partnerId);
-            logInfo(res);
+    private Integer handleWhatIf(String[] args, Output out) {
+        if (args.length < 4) {
+            out.error("command WHAT_IF takes at least 4 arguments: year quarter file rules [rules ...].");
+            return 0;
+        }
+        try {
+            int year, quarter;
+            year = Integer.parseInt(args[0]);
+            if(year < 1000 || year > 5000) {
+                out.error("Invalid year.");
+                return 0;
+            }
+            quarter = Integer.parseInt(args[1]);
+            if(quarter < 1 || quarter > 4) {
+                out.error("Invalid quarter.");
+                return 0;
+            }
 
+            List<RewardRules> rules = new ArrayList<>();
+            for (int i = 3; i < args.length; i++) {
+                rules.add(RewardRules.load(args[i]));
+            }
+            String res = Statistics.writeWhatIf(year, quarter, rules, args[2]);
+            out.info(String.format("Wrote level and reward of all partners under %d rule sets to %s", rules.size(), args[2]));
+            out.info(res);
             return 1;
         } catch (Exception ex) {
-            logError("Calculating all rewards was not successful: " + ex.getMessage());
+            out.error("What-if was not successful: " + ex.getMessage());
             return 0;
         }
     }
 
-    private Integer processInput(String input) {
+    private Integer handleSnapshot(String[] args, Output out) {
+        if (args.length != 1) {
+            out.error("command SNAPSHOT takes exactly 1 arguments.");
+            return 0;
+        }
+        try {
+            SnapshotHandler.getInstance().saveSnapshot(args[0]);
+            return 1;
+        } catch (Exception ex) {
+            out.error("Writing snapshot was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleRestore(String[] args, Output out) {
+        if (args.length != 1) {
+            out.error("command RESTORE takes exactly 1 arguments.");
+            return 0;
+        }
+        try {
+            // Replaces all the registered partners and loaded contracts
+            SnapshotHandler.getInstance().restoreSnapshot(args[0]);
+            return 1;
+        } catch (Exception ex) {
+            out.error("Restoring snapshot was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleJournal(String[] args, Output out) {
+        if (args.length != 1) {
+            out.error("command JOURNAL takes exactly 1 arguments.");
+            return 0;
+        }
+        try {
+            // Restores the last checkpoint and replays the journal, then journals all the changes
+            JournalHandler.getInstance().openJournal(args[0]);
+            return 1;
+        } catch (Exception ex) {
+            out.error("Opening journal was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleCheckpoint(String[] args, Output out) {
+        if (args.length != 0) {
+            out.error("command CHECKPOINT takes no arguments.");
+            return 0;
+        }
+        try {
+            JournalHandler.getInstance().checkpoint();
+            return 1;
+        } catch (Exception ex) {
+            out.error("Checkpoint was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleGenerate(String[] args, Output out) {
+        if (args.length < 3 || args.length > 7) {
+            out.error("command GENERATE takes 3 to 7 arguments: directory partners contracts [seed] [depth] [first year] [years].");
+            return 0;
+        }
+        try {
+            int partners = Integer.parseInt(args[1]);
+            long contracts = Long.parseLong(args[2]);
+            long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+            int depth = args.length > 4 ? Integer.parseInt(args[4]) : 6;
+            int firstYear = args.length > 5 ? Integer.parseInt(args[5]) : 2010;
+            int years = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+
+            long rows = new DatasetGenerator(partners, contracts, seed, depth, firstYear, years).generate(args[0]);
+            out.info(String.format("Generated %d partners into %s and %d contract rows into %s", partners,
+                    DatasetGenerator.PARTNERS_FILE, rows, DatasetGenerator.CONTRACTS_FILE));
+            return 1;
+        } catch (Exception ex) {
+            out.error("Generating dataset was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleCache(String[] args, Output out) {
+        if (args.length != 0) {
+            out.error("command CACHE takes no arguments.");
+            return 0;
+        }
+        QueryCache cache = QueryCache.getInstance();
+        out.info(String.format("Query cache: %d entries, %d hits, %d misses, %d evictions, %d invalidations",
+                cache.size(), cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getInvalidations()));
+        return 1;
+    }
+
+    private Integer handleStats(String[] args, Output out) {
+        if (args.length == 0) {
+            Metrics.getInstance().toLines().forEach(out::info);
+            return 1;
+        }
+        if (args.length < 2 || args.length > 3) {
+            out.error("command STATS takes no arguments, or 2 or 3 arguments: file JSON|PROMETHEUS [interval seconds].");
+            return 0;
+        }
+        try {
+            Metrics.Format format = Metrics.Format.valueOf(args[1]);
+            if (args.length == 2) {
+                Metrics.getInstance().export(args[0], format);
+                out.info("Exported metrics to " + args[0]);
+                return 1;
+            }
+            long interval = Long.parseLong(args[2]);
+            Metrics.getInstance().exportPeriodically(args[0], format, interval);
+            out.info(interval > 0
+                    ? String.format("Exporting metrics to %s every %d seconds", args[0], interval)
+                    : "Stopped exporting metrics");
+            return 1;
+        } catch (Exception ex) {
+            out.error("Exporting metrics was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private Integer handleIngest(String[] args, Output out) {
+        ContractIngestion ingestion = ContractIngestion.getInstance();
+        if (args.length == 0) {
+            out.info(ingestion.getStatus());
+            return 1;
+        }
+        if (args.length > 3) {
+            out.error("command INGEST takes no arguments, STOP, or 1 to 3 arguments: file [batch rows] [max delay ms].");
+            return 0;
+        }
+        try {
+            if (args.length == 1 && args[0].equals("STOP")) {
+                ingestion.stop();
+                out.info("Stopped ingestion");
+                return 1;
+            }
+            int batchRows = args.length > 1 ? Integer.parseInt(args[1]) : ContractIngestion.DEFAULT_BATCH_ROWS;
+            long maxDelay = args.length > 2 ? Long.parseLong(args[2]) : ContractIngestion.DEFAULT_MAX_DELAY_MILLIS;
+            ingestion.tail(args[0], batchRows, maxDelay);
+            out.info(String.format("Ingesting %s in batches of %d rows or %d ms", args[0], batchRows, maxDelay));
+            return 1;
+        } catch (Exception ex) {
+            out.error("Ingestion was not successful: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    Integer processInput(String input, Output out) {
         String[] args = input.split(" ");
 
         String cmd = args[0];
+        if (queries.containsKey(cmd)) {
+            return queries.get(cmd).runQuery(
+                    Arrays.copyOfRange(args, 1, args.length), out, QueryView.current()
+            );
+        }
         if (!commands.containsKey(cmd)) {
-            logError("Invalid command '" + cmd + "'");
+            out.error("Invalid command '" + cmd + "'");
             return 0;
         }
 
         return commands.get(cmd).runCommand(
-                Arrays.copyOfRange(args, 1, args.length)
+                Arrays.copyOfRange(args, 1, args.length), out
         );
     }
 
@@ -171,9 +511,89 @@ public class CommandHandler {
                         System.in));
         String input;
         while ((input = in.readLine()) != null) {
-            processInput(input);
+            processInput(input, console);
+        }
+
+    }
+
+    /**
+     * Function to run all the commands of a file or stream, writing the messages without colors.
+     * Consecutive queries are evaluated in parallel on the same view of the data (each distinct
+     * query only once), and their messages are written in input order.
+     * @param input
+     * @param output
+     * @throws IOException
+     */
+    public void runBatch(InputStream input, OutputStream output) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input), 1 << 16);
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(output), 1 << 16);
+        List<String> pendingQueries = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (queries.containsKey(line.split(" ", 2)[0])) {
+                pendingQueries.add(line);
+                if (pendingQueries.size() == MAX_BATCH_QUERIES) {
+                    runQueries(pendingQueries, out);
+                }
+                continue;
+            }
+            // Changes have to see the results of the queries before them and the other way around
+            runQueries(pendingQueries, out);
+            StringBuilder messages = new StringBuilder();
+            processInput(line, new BufferedOutput(messages));
+            out.append(messages);
+        }
+        runQueries(pendingQueries, out);
+        out.flush();
+    }
+
+    private void runQueries(List<String> pendingQueries, Writer out) throws IOException {
+        if (pendingQueries.isEmpty()) {
+            return;
+        }
+        QueryView view = QueryView.current();
+        LinkedHashMap<String, Integer> distinct = new LinkedHashMap<>();
+        for (String query : pendingQueries) {
+            distinct.putIfAbsent(query, distinct.size());
+        }
+        String[] distinctQueries = distinct.keySet().toArray(new String[0]);
+        String[] messages = new String[distinctQueries.length];
+        IntStream.range(0, distinctQueries.length).parallel().forEach(i -> {
+            String[] args = distinctQueries[i].split(" ");
+            StringBuilder message = new StringBuilder();
+            queries.get(args[0]).runQuery(Arrays.copyOfRange(args, 1, args.length), new BufferedOutput(message), view);
+            messages[i] = message.toString();
+        });
+        for (String query : pendingQueries) {
+            out.write(messages[distinct.get(query)]);
+        }
+        pendingQueries.clear();
+    }
+
+    // Collects the messages of a command without colors
+    static class BufferedOutput implements Output {
+
+        private final StringBuilder messages;
+
+        BufferedOutput(StringBuilder messages) {
+            this.messages = messages;
         }
 
+        @Override
+        public void info(String msg) {
+            messages.append(msg).append('\n');
+        }
+
+        @Override
+        public void info(InfoWriter writer) throws IOException {
+            writer.write(messages);
+            messages.append('\n');
+        }
+
+        @Override
+        public void error(String msg) {
+            messages.append(msg).append('\n');
+        }
     }
 
     public void runTest() {
@@ -198,7 +618,7 @@ public class CommandHandler {
 
         for (int i = 0 ; i < testCommands.length ; i++) {
             System.out.println(testCommands[i]);
-            Integer res = processInput(testCommands[i]);
+            Integer res = processInput(testCommands[i], console);
             if (res == 0) {
                 break;
             }
@@ -0,0 +1,244 @@
+package com.project.reward.simulator.cli;
+
+import com.project.reward.simulator.controller.Histogram;
+import com.project.reward.simulator.controller.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP server which answers queries of a CommandHandler with JSON, e.g.
+ * GET /rewards?partner=1&year=2011&quarter=1 runs "REWARDS 1 2011 1".
+ * GET /stats returns the request rate and the latency percentiles of every endpoint, together with
+ * the metrics of loads and queries (see Metrics).
+ *
+ * Only queries are served. Commands which change the data or read and write files (LOAD, RESTORE,
+ * SNAPSHOT...) are not, since the server does not know who is calling: any web page can send a
+ * cross-origin POST to the loopback interface without a preflight.
+ *
+ * Every parameter is one argument, so values with whitespace are rejected.
+ *
+ * Requests run on virtual threads when the JDK has them, otherwise on a fixed pool of threads,
+ * since the queries are bound by the CPU anyway.
+ */
+public class QueryServer {
+
+    // Endpoint --> command and its parameters (in argument order)
+    private static final class Endpoint {
+
+        private final String command;
+
+        private final String[] parameters;
+
+        // Number of parameters which have to be given, the others are optional
+        private final int required;
+
+        private Endpoint(String command, int required, String... parameters) {
+            this.command = command;
+            this.parameters = parameters;
+            this.required = required;
+        }
+    }
+
+    private static final Map<String, Endpoint> endpoints = new LinkedHashMap<>() {
+        {
+            put("/level", new Endpoint("LEVEL", 3, "partner", "year", "quarter"));
+            put("/rewards", new Endpoint("REWARDS", 3, "partner", "year", "quarter"));
+            put("/all-rewards", new Endpoint("ALL_REWARDS", 1, "partner"));
+            put("/level-history", new Endpoint("LEVEL_HISTORY", 1, "partner", "fromYear", "fromQuarter",
+                    "toYear", "toQuarter"));
+            put("/cache", new Endpoint("CACHE", 0));
+            put("/ingest-status", new Endpoint("INGEST", 0));
+        }
+    };
+
+    private final CommandHandler handler;
+
+    private final Map<String, Histogram> latencies = new HashMap<>();
+
+    private final long startNanos = System.nanoTime();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    public QueryServer(CommandHandler handler) {
+        this.handler = handler;
+        for (String path : endpoints.keySet()) {
+            latencies.put(path, new Histogram());
+        }
+    }
+
+    /**
+     * Function to start serving on the loopback interface
+     * @param port
+     * 0 for any free port
+     * @return int
+     * The port the server is listening on
+     * @throws IOException
+     */
+    public int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        for (String path : endpoints.keySet()) {
+            server.createContext(path, exchange -> handle(path, exchange));
+        }
+        server.createContext("/stats", this::handleStats);
+        executor = createExecutor();
+        server.setExecutor(executor);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    private void handle(String path, HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Endpoint endpoint = endpoints.get(path);
+            if (!exchange.getRequestURI().getPath().equals(path)) {
+                respond(exchange, 404, error("Not found: " + exchange.getRequestURI().getPath()));
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, error(path + " only accepts GET"));
+                return;
+            }
+
+            Map<String, List<String>> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            StringBuilder command = new StringBuilder(endpoint.command);
+            for (int i = 0; i < endpoint.parameters.length; i++) {
+                String name = endpoint.parameters[i];
+                List<String> values = parameters.get(name);
+                if (Objects.isNull(values)) {
+                    if (i < endpoint.required) {
+                        respond(exchange, 400, error("Missing parameter: " + name));
+                        return;
+                    }
+                    break;
+                }
+                if (values.size() > 1) {
+                    respond(exchange, 400, error("Parameter given more than once: " + name));
+                    return;
+                }
+                String value = values.get(0);
+                // Arguments are separated by spaces, a value must not add any
+                if (value.isEmpty() || value.chars().anyMatch(Character::isWhitespace)) {
+                    respond(exchange, 400, error("Invalid value of parameter: " + name));
+                    return;
+                }
+                command.append(' ').append(value);
+            }
+
+            StringBuilder messages = new StringBuilder();
+            Integer res = handler.processInput(command.toString(), new CommandHandler.BufferedOutput(messages));
+            respond(exchange, res == 1 ? 200 : 400, result(command.toString(), res == 1, messages));
+        } finally {
+            latencies.get(path).record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder json = new StringBuilder("{\"uptimeSeconds\":")
+                .append(String.format(Locale.ROOT, "%.3f", seconds)).append(",\"endpoints\":{");
+        boolean first = true;
+        for (String path : endpoints.keySet()) {
+            Histogram histogram = latencies.get(path);
+            long count = histogram.getCount();
+            json.append(first ? "" : ",").append('"').append(path).append("\":{")
+                    .append("\"requests\":").append(count)
+                    .append(",\"requestsPerSecond\":").append(String.format(Locale.ROOT, "%.3f", count / seconds))
+                    .append(",\"meanMicros\":").append(histogram.getMean())
+                    .append(",\"p50Micros\":").append(histogram.getPercentile(50))
+                    .append(",\"p99Micros\":").append(histogram.getPercentile(99))
+                    .append(",\"p999Micros\":").append(histogram.getPercentile(99.9))
+                    .append('}');
+            first = false;
+        }
+        json.append("},\"metrics\":").append(Metrics.getInstance().toJson()).append('}');
+        respond(exchange, 200, json.toString());
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) {
+        Map<String, List<String>> parameters = new HashMap<>();
+        if (Objects.isNull(query)) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                parameters.computeIfAbsent(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        name -> new ArrayList<>()).add(URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static String result(String command, boolean ok, CharSequence messages) {
+        StringBuilder json = new StringBuilder("{\"command\":").append(quote(command))
+                .append(",\"ok\":").append(ok).append(",\"messages\":[");
+        boolean first = true;
+        for (String line : messages.toString().split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            json.append(first ? "" : ",").append(quote(line));
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String error(String message) {
+        return "{\"ok\":false,\"messages\":[" + quote(message) + "]}";
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
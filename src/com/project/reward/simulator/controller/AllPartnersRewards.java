@@ -0,0 +1,124 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.controller.Statistics.RewardLevel;
+
+import java.io.IOException;
+
+/**
+ * Level and reward of every partner for one quarter, calculated in one bottom-up pass over the tree
+ * instead of one query per partner.
+ *
+ * Every partner's own contracts are counted once. The active contracts of a sub-tree are the partner's
+ * own plus the ones of its children's sub-trees, and the reward of a partner only needs the counts of
+ * its children, so a partner is done as soon as its children are, in parallel (see {@link BottomUpPass}).
+ */
+final class AllPartnersRewards {
+
+    private static final RewardLevel[] LEVELS = RewardLevel.values();
+
+    // Shared by all the tasks of a run, every task only writes the positions of its sub-tree
+    private static final class Run {
+
+        private final ContractIndex index;
+
+        private final PartnerTree tree;
+
+        private final int validFrom;
+
+        private final int validTo;
+
+        private final int quarterOfYear;
+
+        private final int year;
+
+        // By position: active contracts in the sub-tree, direct contracts, level ordinal and reward
+        private final long[] activeCounts;
+
+        private final long[] directCounts;
+
+        private final byte[] levels;
+
+        private final long[] rewards;
+
+        private Run(QueryView view, int year, int quarter) {
+            this.index = view.getIndex();
+            this.tree = view.getTree();
+            this.validFrom = Statistics.getValidFrom(year, quarter);
+            this.validTo = Statistics.getValidTo(year, quarter);
+            this.quarterOfYear = quarter - 1;
+            this.year = year;
+            int n = tree.size();
+            activeCounts = new long[n];
+            directCounts = new long[n];
+            levels = new byte[n];
+            rewards = new long[n];
+        }
+
+        /**
+         * Function to finish a partner whose children are all finished
+         * @param position
+         * @param counts
+         * Buffer for ContractIndex.countActive
+         * @return long
+         * Number of contracts looked at
+         */
+        private long finish(int position, int[] counts) {
+            index.countActive(tree.getPartnerIndex(position), validFrom, validTo, quarterOfYear, year, counts);
+            long active = counts[0];
+            long directChildContracts = 0, directChildRewards = 0;
+            for (int child = tree.getFirstChild(position); child < tree.getSubtreeEnd(position);
+                 child = tree.getNextSibling(child)) {
+                active += activeCounts[child];
+                directChildContracts += directCounts[child];
+                directChildRewards += directCounts[child] * LEVELS[levels[child]].getRewardPerContract();
+            }
+            RewardLevel level = Statistics.getLevel(active);
+            activeCounts[position] = active;
+            directCounts[position] = counts[1];
+            levels[position] = (byte) level.ordinal();
+            // Same as Statistics.getPartnerReward
+            rewards[position] = counts[1] * level.getRewardPerContract()
+                    + counts[2] * Statistics.RABBIT_BONUS
+                    + directChildContracts * level.getRewardPerContract() - directChildRewards;
+            return counts[3];
+        }
+    }
+
+    private AllPartnersRewards() {
+    }
+
+    /**
+     * Function to calculate the level and reward of all the partners of a view and write them to a csv file
+     * (partnerId,level,reward) in registration order
+     * @param view
+     * @param year
+     * @param quarter
+     * @param filePath
+     * @return int
+     * Number of partners
+     * @throws IOException
+     */
+    static int write(QueryView view, int year, int quarter, String filePath) throws IOException {
+        Run run = new Run(view, year, quarter);
+        PartnerTree tree = run.tree;
+        long scanned = BottomUpPass.run(tree, () -> {
+            int[] counts = new int[4];
+            return position -> run.finish(position, counts);
+        });
+        Metrics.getInstance().recordScan(scanned, tree.size());
+
+        AtomicFile.write(filePath, out -> {
+            out.write("partnerId,level,reward\n");
+            for (int partner = 0; partner < tree.size(); partner++) {
+                int position = tree.getPositionByIndex(partner);
+                out.write(Long.toString(tree.getPartnerId(position)));
+                out.write(',');
+                out.write(LEVELS[run.levels[position]].name());
+                out.write(',');
+                out.write(Long.toString(run.rewards[position]));
+                out.write('\n');
+            }
+        });
+        return tree.size();
+    }
+}
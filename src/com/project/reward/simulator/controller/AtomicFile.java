@@ -0,0 +1,39 @@
+package com.project.reward.simulator.controller;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Text file which is written next to its target and then moved over it, so readers of the target
+ * never see it half written.
+ */
+final class AtomicFile {
+
+    // Writes the content of a file
+    interface Content {
+        void write(BufferedWriter out) throws IOException;
+    }
+
+    private AtomicFile() {
+    }
+
+    /**
+     * Function to write a file, replacing it at once if it exists
+     * @param filePath
+     * @param content
+     * @throws IOException
+     */
+    static void write(String filePath, Content content) throws IOException {
+        Path target = Paths.get(filePath);
+        Path tmp = Paths.get(filePath + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            content.write(out);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
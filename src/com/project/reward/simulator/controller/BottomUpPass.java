@@ -0,0 +1,104 @@
+package com.project.reward.simulator.controller;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Pass over all the partners of a tree in which a partner is done as soon as its children are,
+ * e.g. to add up the contracts of every sub-tree.
+ *
+ * Sub-trees are independent, so the tree is cut into sub-trees of at most SPLIT_SIZE partners
+ * (consecutive small ones are grouped), which are done in parallel on the fork-join pool.
+ * The partners above them are done afterwards, bottom-up. The tree is cut without recursion,
+ * so a very deep tree can't overflow the stack.
+ */
+final class BottomUpPass {
+
+    // Maximum number of partners done by one task
+    private static final int SPLIT_SIZE = 1 << 12;
+
+    // Work done for every partner, a step is only used by one task
+    interface Step {
+
+        /**
+         * Function to finish a partner whose children are all finished
+         * @param position
+         * @return long
+         * Number of contracts looked at
+         */
+        long finish(int position);
+    }
+
+    private BottomUpPass() {
+    }
+
+    /**
+     * Function to finish the partners of a range of positions which contains only whole sub-trees
+     * @param step
+     * @param from
+     * @param to
+     * @return long
+     * Number of contracts looked at
+     */
+    private static long finishRange(Step step, int from, int to) {
+        long scanned = 0;
+        // Backwards, every child is finished before its parent
+        for (int pos = to - 1; pos >= from; pos--) {
+            scanned += step.finish(pos);
+        }
+        return scanned;
+    }
+
+    /**
+     * Function to finish all the partners of a tree
+     * @param tree
+     * @param steps
+     * Creates the step of every task, e.g. with its own buffers
+     * @return long
+     * Number of contracts looked at
+     */
+    static long run(PartnerTree tree, Supplier<Step> steps) {
+        int n = tree.size();
+
+        // Ranges of whole sub-trees [rangeStarts[i], rangeEnds[i]) and the partners above them
+        int[] rangeStarts = new int[16], rangeEnds = new int[16], above = new int[16];
+        int numRanges = 0, numAbove = 0;
+        int pos = 0;
+        while (pos < n) {
+            int end = tree.getSubtreeEnd(pos);
+            if (end - pos > SPLIT_SIZE) {
+                // Continues with the first child
+                if (numAbove == above.length) {
+                    above = Arrays.copyOf(above, numAbove * 2);
+                }
+                above[numAbove++] = pos++;
+                continue;
+            }
+            if (numRanges > 0 && rangeEnds[numRanges - 1] == pos && end - rangeStarts[numRanges - 1] <= SPLIT_SIZE) {
+                rangeEnds[numRanges - 1] = end;
+            } else {
+                if (numRanges == rangeStarts.length) {
+                    rangeStarts = Arrays.copyOf(rangeStarts, numRanges * 2);
+                    rangeEnds = Arrays.copyOf(rangeEnds, numRanges * 2);
+                }
+                rangeStarts[numRanges] = pos;
+                rangeEnds[numRanges] = end;
+                numRanges++;
+            }
+            pos = end;
+        }
+        int[] starts = rangeStarts, ends = rangeEnds;
+        LongAdder scanned = new LongAdder();
+        IntStream.range(0, numRanges).parallel()
+                .forEach(i -> scanned.add(finishRange(steps.get(), starts[i], ends[i])));
+        // Partners above the ranges are in pre-order, so backwards every child is finished before its parent
+        Step step = steps.get();
+        long total = scanned.sum();
+        for (int i = numAbove - 1; i >= 0; i--) {
+            total += step.finish(above[i]);
+        }
+        return total;
+    }
+}
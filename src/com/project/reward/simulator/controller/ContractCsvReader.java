@@ -0,0 +1,544 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.data.Contract.ContractAction;
+import com.project.reward.simulator.data.Contract.ContractType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streaming reader for contract csv files.
+ * The file is read through a large buffer and the fields are parsed directly from the bytes:
+ * numbers without creating Strings, dates into epoch-days and enums by comparing their names byte by byte.
+ * Rows which don't have the exact expected format are passed on as a String, so they can go through
+ * the normal validation and fail with the same error messages.
+ * The file can also be split into chunks on line boundaries, which are parsed independently
+ * and handled later in file order.
+ */
+class ContractCsvReader {
+
+    interface RowHandler {
+        /**
+         * Function to handle a well formed row
+         * @return boolean
+         * false if the row should be handled as a malformed row instead
+         * @throws IOException
+         */
+        boolean onRow(long partnerId, long contractId, ContractType type, int epochDay, ContractAction action)
+                throws IOException;
+
+        void onMalformedRow(String line) throws IOException;
+    }
+
+    private interface LineHandler {
+        void onLine(byte[] bytes, int from, int to) throws IOException;
+    }
+
+    /**
+     * Parsed rows of a chunk of the file, kept with the raw bytes until they are handled
+     */
+    static class Chunk {
+        private final byte[] bytes;
+
+        private int size = 0;
+
+        private long[] partnerIds = new long[1024];
+
+        private long[] contractIds = new long[1024];
+
+        private int[] epochDays = new int[1024];
+
+        private byte[] types = new byte[1024];
+
+        // Action ordinal, or -1 for malformed rows
+        private byte[] actions = new byte[1024];
+
+        private int[] lineStarts = new int[1024];
+
+        private int[] lineEnds = new int[1024];
+
+        private Chunk(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private void add(ContractCsvReader reader, boolean wellFormed, int from, int to) {
+            if (size == actions.length) {
+                int capacity = size * 2;
+                partnerIds = Arrays.copyOf(partnerIds, capacity);
+                contractIds = Arrays.copyOf(contractIds, capacity);
+                epochDays = Arrays.copyOf(epochDays, capacity);
+                types = Arrays.copyOf(types, capacity);
+                actions = Arrays.copyOf(actions, capacity);
+                lineStarts = Arrays.copyOf(lineStarts, capacity);
+                lineEnds = Arrays.copyOf(lineEnds, capacity);
+            }
+            if (wellFormed) {
+                partnerIds[size] = reader.partnerId;
+                contractIds[size] = reader.contractId;
+                epochDays[size] = reader.epochDay;
+                types[size] = (byte) reader.type;
+                actions[size] = (byte) reader.action;
+            } else {
+                actions[size] = -1;
+            }
+            lineStarts[size] = from;
+            lineEnds[size] = to;
+            size++;
+        }
+
+        /**
+         * Function to pass all the rows of the chunk to the handler, in file order
+         * @param handler
+         * @throws IOException
+         */
+        void replay(RowHandler handler) throws IOException {
+            for (int i = 0; i < size; i++) {
+                replayRow(i, handler);
+            }
+        }
+
+        /**
+         * Function to pass one row of the chunk to the handler
+         * @param row
+         * @param handler
+         * @throws IOException
+         */
+        void replayRow(int row, RowHandler handler) throws IOException {
+            if (actions[row] < 0 || !handler.onRow(partnerIds[row], contractIds[row], TYPES[types[row]],
+                    epochDays[row], ACTIONS[actions[row]])) {
+                handler.onMalformedRow(
+                        new String(bytes, lineStarts[row], lineEnds[row] - lineStarts[row], Charset.defaultCharset()));
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isWellFormed(int row) {
+            return actions[row] >= 0;
+        }
+
+        long getPartnerId(int row) {
+            return partnerIds[row];
+        }
+
+        long getContractId(int row) {
+            return contractIds[row];
+        }
+
+        int getEpochDay(int row) {
+            return epochDays[row];
+        }
+
+        ContractType getType(int row) {
+            return TYPES[types[row]];
+        }
+
+        ContractAction getAction(int row) {
+            return ACTIONS[actions[row]];
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final ContractType[] TYPES = ContractType.values();
+
+    private static final byte[][] TYPE_NAMES = names(TYPES);
+
+    private static final ContractAction[] ACTIONS = ContractAction.values();
+
+    private static final byte[][] ACTION_NAMES = names(ACTIONS);
+
+    private static byte[][] names(Enum<?>[] values) {
+        byte[][] names = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            names[i] = values[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+        return names;
+    }
+
+    // Line splitting state, the first line is the csv header
+    private boolean header;
+
+    private boolean skipLineFeed = false;
+
+    // Parsing state of the current line
+    private byte[] line;
+
+    private int pos;
+
+    private int end;
+
+    // Fields of the last parsed line
+    private long partnerId;
+
+    private long contractId;
+
+    private int type;
+
+    private int epochDay;
+
+    private int action;
+
+    /**
+     * Function to read all the rows of a csv file, skipping its header and empty lines
+     * @param path
+     * @param handler
+     * @throws IOException
+     */
+    void read(Path path, RowHandler handler) throws IOException {
+        LineHandler lineHandler = (bytes, from, to) -> {
+            boolean wellFormed = parseLine(bytes, from, to);
+            if (!wellFormed || !handler.onRow(partnerId, contractId, TYPES[type], epochDay, ACTIONS[action])) {
+                handler.onMalformedRow(new String(bytes, from, to - from, Charset.defaultCharset()));
+            }
+        };
+        header = true;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (true) {
+                int read = channel.read(buffer);
+                byte[] bytes = buffer.array();
+                int limit = buffer.position();
+                int lineStart = splitLines(bytes, 0, limit, read < 0, lineHandler);
+                if (read < 0) {
+                    return;
+                }
+
+                // Move the incomplete line to the start of the buffer, growing it for very long lines
+                if (lineStart == 0 && limit == buffer.capacity()) {
+                    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                    grown.put(bytes, 0, limit);
+                    buffer = grown;
+                } else {
+                    buffer.flip().position(lineStart);
+                    buffer.compact();
+                }
+            }
+        }
+    }
+
+    /**
+     * Function to find where the first rows of a file end, counted like read() does (without the header
+     * and empty lines), e.g. to know how much of a file a failed load consumed
+     * @param path
+     * @param rows
+     * @return long
+     * Offset after the line break of the last of those rows, the file size if the file has fewer rows
+     * @throws IOException
+     */
+    static long findRowsEnd(Path path, long rows) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            boolean inHeader = true, afterReturn = false, inRow = false;
+            long count = 0, position = 0;
+            // End of the last row once it's found, only a line feed of its "\r\n" is still added
+            long found = -1;
+            int read;
+            while ((read = channel.read(buffer, position)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    boolean lineFeedOfReturn = b == '\n' && afterReturn;
+                    if (found >= 0) {
+                        return lineFeedOfReturn ? found + 1 : found;
+                    }
+                    afterReturn = b == '\r';
+                    if (lineFeedOfReturn) {
+                        continue;
+                    }
+                    if (b != '\n' && b != '\r') {
+                        inRow = !inHeader;
+                    } else if (inHeader) {
+                        inHeader = false;
+                    } else if (inRow) {
+                        inRow = false;
+                        if (++count == rows) {
+                            found = position + i + 1;
+                        }
+                    }
+                }
+                position += read;
+                buffer.clear();
+            }
+            return found >= 0 ? found : position;
+        }
+    }
+
+    /**
+     * Function to find the chunk boundaries of a file: roughly every chunkSize bytes, right after a line feed
+     * @param channel
+     * @param chunkSize
+     * @return long[]
+     * Offsets from 0 to the file size, chunk i is [offsets[i], offsets[i + 1])
+     * @throws IOException
+     */
+    static long[] splitChunks(FileChannel channel, long chunkSize) throws IOException {
+        long fileSize = channel.size();
+        long[] offsets = new long[(int) (fileSize / chunkSize) + 2];
+        int count = 1;
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long offset = chunkSize;
+        while (offset < fileSize) {
+            // Move to the byte after the next line feed
+            long boundary = fileSize;
+            long position = offset;
+            while (boundary == fileSize && position < fileSize) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        boundary = position + i + 1;
+                        break;
+                    }
+                }
+                position += Math.max(read, 0);
+            }
+            if (boundary < fileSize) {
+                offsets[count++] = boundary;
+            }
+            offset = Math.max(boundary, offset + chunkSize);
+        }
+        offsets[count++] = fileSize;
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Function to read and parse a chunk of the file, without handling its rows
+     * @param channel
+     * @param from
+     * Start of a line
+     * @param to
+     * Start of a line or the end of the file
+     * @param withHeader
+     * Whether the chunk starts with the csv header
+     * @return Chunk
+     * @throws IOException
+     */
+    Chunk readChunk(FileChannel channel, long from, long to, boolean withHeader) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return parseChunk(buffer.array(), buffer.position(), withHeader);
+    }
+
+    /**
+     * Function to parse lines which are already in memory, without handling their rows
+     * @param bytes
+     * Complete lines, the chunk keeps the array
+     * @param length
+     * @param withHeader
+     * Whether the lines start with the csv header
+     * @return Chunk
+     * @throws IOException
+     */
+    Chunk parseChunk(byte[] bytes, int length, boolean withHeader) throws IOException {
+        Chunk chunk = new Chunk(bytes);
+        header = withHeader;
+        splitLines(bytes, 0, length, true,
+                (lineBytes, lineFrom, lineTo) -> chunk.add(this, parseLine(lineBytes, lineFrom, lineTo), lineFrom, lineTo));
+        return chunk;
+    }
+
+    /**
+     * Function to pass all the complete non-empty lines to the handler, skipping the header
+     * @param bytes
+     * @param start
+     * @param limit
+     * @param endOfFile
+     * Whether the last line is complete even without a line break
+     * @param handler
+     * @return int
+     * Start of the first incomplete line
+     * @throws IOException
+     */
+    private int splitLines(byte[] bytes, int start, int limit, boolean endOfFile, LineHandler handler)
+            throws IOException {
+        int lineStart = start;
+        for (int i = start; i < limit; i++) {
+            byte b = bytes[i];
+            if (b != '\n' && b != '\r') {
+                continue;
+            }
+            // "\r\n" is one line break
+            if (b == '\n' && skipLineFeed && i == lineStart) {
+                skipLineFeed = false;
+                lineStart = i + 1;
+                continue;
+            }
+            skipLineFeed = b == '\r';
+            if (header) {
+                header = false;
+            } else if (i > lineStart) {
+                handler.onLine(bytes, lineStart, i);
+            }
+            lineStart = i + 1;
+        }
+        if (endOfFile && limit > lineStart) {
+            if (!header) {
+                handler.onLine(bytes, lineStart, limit);
+            }
+            lineStart = limit;
+        }
+        return lineStart;
+    }
+
+    /**
+     * Function to parse the fields of a line
+     * @param bytes
+     * @param from
+     * @param to
+     * @return boolean
+     * false if the line doesn't have the exact expected format
+     */
+    private boolean parseLine(byte[] bytes, int from, int to) {
+        line = bytes;
+        pos = from;
+        end = to;
+        partnerId = parseId();
+        contractId = parseId();
+        type = parseName(TYPE_NAMES);
+        epochDay = parseDate();
+        action = parseName(ACTION_NAMES);
+        return partnerId >= 0 && contractId >= 0 && type >= 0
+                && epochDay != Integer.MIN_VALUE && action >= 0 && pos == end + 1;
+    }
+
+    /**
+     * Function to move to the next field if the current field ends at the current position
+     * @return boolean
+     */
+    private boolean endOfField() {
+        if (pos > end) {
+            return false;
+        }
+        if (pos == end || line[pos] == ',') {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Function to parse an unsigned number of at most 18 digits
+     * @return long
+     * -1 if the field is not in that format
+     */
+    private long parseId() {
+        long value = 0;
+        int start = pos;
+        while (pos < end && line[pos] >= '0' && line[pos] <= '9' && pos - start < 18) {
+            value = value * 10 + (line[pos++] - '0');
+        }
+        return pos > start && endOfField() ? value : -1;
+    }
+
+    /**
+     * Function to find which of the given names is in the current field
+     * @param names
+     * @return int
+     * -1 if it doesn't match any of them
+     */
+    private int parseName(byte[][] names) {
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i];
+            if (end - pos < name.length) {
+                continue;
+            }
+            int j = 0;
+            while (j < name.length && line[pos + j] == name[j]) {
+                j++;
+            }
+            if (j == name.length) {
+                int start = pos;
+                pos += name.length;
+                if (endOfField()) {
+                    return i;
+                }
+                pos = start;
+            }
+        }
+        return -1;
+    }
+
+    private int parseDigits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++, pos++) {
+            if (pos >= end || line[pos] < '0' || line[pos] > '9') {
+                return -1;
+            }
+            value = value * 10 + (line[pos] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Function to parse a yyyy-MM-dd date into its epoch-day
+     * @return int
+     * Integer.MIN_VALUE if the field is not a valid date in that format
+     */
+    private int parseDate() {
+        int year = parseDigits(4);
+        if (year < 1 || pos >= end || line[pos++] != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int month = parseDigits(2);
+        if (month < 1 || month > 12 || pos >= end || line[pos++] != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int day = parseDigits(2);
+        if (day < 1 || day > lengthOfMonth(year, month) || !endOfField()) {
+            return Integer.MIN_VALUE;
+        }
+        return toEpochDay(year, month, day);
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Function to get the number of days since 1970-01-01, same as LocalDate.toEpochDay()
+     * @param year
+     * @param month
+     * @param day
+     * @return int
+     */
+    static int toEpochDay(int year, int month, int day) {
+        long y = year;
+        long total = 365 * y;
+        total += (y + 3) / 4 - (y + 99) / 100 + (y + 399) / 400;
+        total += (367 * month - 362) / 12;
+        total += day - 1;
+        if (month > 2) {
+            total--;
+            if (!isLeapYear(year)) {
+                total--;
+            }
+        }
+        return (int) (total - 719528);
+    }
+}
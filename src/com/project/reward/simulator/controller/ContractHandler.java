@@ -3,21 +3,46 @@ package com.project.reward.simulator.controller;
 import com.project.reward.simulator.data.Contract;
 import com.project.reward.simulator.data.Contract.ContractType;
 import com.project.reward.simulator.data.Contract.ContractAction;
+import com.project.reward.simulator.data.Partner;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class ContractHandler {
 
+    public enum LoadMode {
+        // Line by line with String parsing
+        SIMPLE,
+        // Large buffer reads, parsing the fields directly from the bytes
+        STREAMING,
+        // Chunks parsed in parallel, applied in file order
+        PARALLEL,
+        // Chunks parsed in parallel, the rows of every partner network applied by its own worker thread
+        PARTITIONED;
+    }
+
+    static final long PARALLEL_CHUNK_SIZE = 8L << 20;
+
     private static final ContractHandler instance = new ContractHandler();
 
-    private final HashMap<Long, Contract> contractsById = new HashMap<>();
+    private ContractStore store = new ContractStore();
+
+    private ContractIndex index = new ContractIndex(store);
+
+    // Rows applied by the writer, for the load metrics
+    private long appliedRows = 0;
 
     private ContractHandler() {
     }
@@ -25,6 +50,7 @@ public class ContractHandler {
     private Contract generateContractByRow(String[] row) throws IOException {
         // Check if we have correct number of elements for this row
         if (row.length != 5) {
+            Metrics.getInstance().onRejectedRow(Metrics.RejectReason.MALFORMED);
             throw new IOException(
                     String.format("Invalid number of elements %d. Each row must contain %d elements",
                             row.length, 5)
@@ -37,6 +63,7 @@ public class ContractHandler {
             // Validate partner id
             Long partnerId = Long.parseLong(row[0]);
             if (!PartnerHandler.getInstance().getPartners().containsKey(partnerId)) {
+                Metrics.getInstance().onRejectedRow(Metrics.RejectReason.UNKNOWN_PARTNER);
                 throw new IOException("Partner not found with id=" + partnerId);
             }
             contract.setPartner(PartnerHandler.getInstance().getPartners().get(partnerId));
@@ -57,33 +84,73 @@ public class ContractHandler {
                 contract.setEndDate(date);
             }
         } catch (NumberFormatException | IOException ex) {
+            if (ex instanceof NumberFormatException) {
+                Metrics.getInstance().onRejectedRow(Metrics.RejectReason.MALFORMED);
+            }
             throw new IOException(
                     String.format("Validation error for row %s: %s", String.join(",", row), ex.getMessage()),
                     ex
             );
+        } catch (RuntimeException ex) {
+            // Invalid contract type, date or action
+            Metrics.getInstance().onRejectedRow(Metrics.RejectReason.MALFORMED);
+            throw ex;
         }
 
         return contract;
     }
 
     private void addOrUpdateContract(Contract newContract) throws IOException {
+        if (Objects.nonNull(newContract.getStartDate())) {
+            addOrUpdateContract(newContract.getPartner().getIndex(), newContract.getId(), newContract.getType(),
+                    (int) newContract.getStartDate().toEpochDay(), ContractAction.BEGIN);
+        } else {
+            addOrUpdateContract(newContract.getPartner().getIndex(), newContract.getId(), newContract.getType(),
+                    (int) newContract.getEndDate().toEpochDay(), ContractAction.END);
+        }
+    }
+
+    /**
+     * Function to add a new contract or end a stored one
+     * @param partner
+     * Partner index
+     * @param contractId
+     * @param type
+     * @param epochDay
+     * @param action
+     * @throws IOException
+     */
+    private void addOrUpdateContract(int partner, long contractId, ContractType type, int epochDay,
+                                     ContractAction action) throws IOException {
+        int slot = store.find(contractId);
+        long partnerId = PartnerHandler.getInstance().getPartner(partner).getId();
         // Update contract if it's already stored, otherwise add it to the list
-        if (contractsById.containsKey(newContract.getId())) {
+        if (slot >= 0) {
             // The only way we could have duplicate contractId is when we want to
             // declare the termination date, so end_date for the old contract should be null.
             // Otherwise it's not allowed.
-            if (contractsById.get(newContract.getId()).equals(newContract)
-                    && Objects.isNull(contractsById.get(newContract.getId()).getEndDate())
-                    && Objects.nonNull(newContract.getEndDate())) {
-                contractsById.get(newContract.getId()).setEndDate(newContract.getEndDate());
+            if (action.equals(ContractAction.END)
+                    && store.getPartner(slot) == partner
+                    && store.getType(slot).equals(type)
+                    && store.getEndDay(slot) == ContractStore.NO_END) {
+                JournalHandler.getInstance().appendContract(partnerId, contractId, type, epochDay, action);
+                Statistics.onContractEnded(slot, epochDay);
+                store.setEndDay(slot, epochDay);
+                appliedRows++;
             } else {
-                throw new IOException("Duplicate contract found with the same id: " + newContract.getId());
+                Metrics.getInstance().onRejectedRow(Metrics.RejectReason.DUPLICATE_CONTRACT);
+                throw new IOException("Duplicate contract found with the same id: " + contractId);
             }
-        } else if (Objects.isNull(newContract.getStartDate())) {
+        } else if (action.equals(ContractAction.END)) {
             // We shouldn't create new contract without a start date
-            throw new IOException("New contract id must have a start date: " + newContract.getId());
+            Metrics.getInstance().onRejectedRow(Metrics.RejectReason.END_WITHOUT_BEGIN);
+            throw new IOException("New contract id must have a start date: " + contractId);
         } else {
-            contractsById.put(newContract.getId(), newContract);
+            JournalHandler.getInstance().appendContract(partnerId, contractId, type, epochDay, action);
+            slot = store.add(contractId, partner, type, epochDay);
+            index.add(slot);
+            Statistics.onContractAdded(slot);
+            appliedRows++;
         }
     }
 
@@ -91,30 +158,236 @@ public class ContractHandler {
         return instance;
     }
 
-    public HashMap<Long, Contract> getContractsById(){
-        return contractsById;
+    /**
+     * Function to get a stored contract, read from the current view without waiting for the writer
+     * @param contractId
+     * @return Contract
+     * null if there is no contract with this id
+     */
+    public Contract getContract(long contractId) {
+        QueryView view = QueryView.current();
+        int slot = view.getStore().find(contractId);
+        return slot < 0 ? null : view.getStore().toContract(slot, view.getLinks());
+    }
+
+    public int getContractCount() {
+        return QueryView.current().getStore().size();
+    }
+
+    ContractStore getStore() {
+        return store;
+    }
+
+    ContractIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Function to replace all the stored contracts, e.g. by a restored snapshot.
+     * Must be called by the writer, see QueryView.
+     * @param restored
+     */
+    void restore(ContractStore restored) {
+        ContractIndex restoredIndex = new ContractIndex(restored);
+        for (int slot = 0; slot < restored.size(); slot++) {
+            restoredIndex.add(slot);
+        }
+        store = restored;
+        index = restoredIndex;
     }
 
     public void loadContracts(String csvFilePath) throws IOException {
+        loadContracts(csvFilePath, LoadMode.STREAMING);
+    }
+
+    public void loadContracts(String csvFilePath, LoadMode mode) throws IOException {
+        File csv = new File(csvFilePath);
+        if (!csv.exists()) {
+            throw new IOException("File not found: " + csvFilePath);
+        }
+        QueryView.lockWriter();
+        long start = System.nanoTime();
+        long rowsBefore = appliedRows;
+        // The error of the load, which a failing commit must not replace
+        Exception failure = null;
         try {
-            File csv = new File(csvFilePath);
-            if (!csv.exists()) {
-                throw new IOException("File not found: " + csvFilePath);
+            if (mode.equals(LoadMode.STREAMING)) {
+                new ContractCsvReader().read(csv.toPath(), getRowHandler());
+                return;
             }
-
-            BufferedReader br = new BufferedReader(new FileReader(csv));
-            String line = br.readLine(); // Skipping csv header
-            while ((line = br.readLine()) != null) {
-                if (line.equals("")) { // Skip empty lines
-                    continue;
+            if (mode.equals(LoadMode.PARALLEL)) {
+                loadContractsParallel(csv);
+                return;
+            }
+            if (mode.equals(LoadMode.PARTITIONED)) {
+                new PartitionedLoad(this).load(csv);
+                return;
+            }
+            try (BufferedReader br = new BufferedReader(new FileReader(csv))) {
+                String line = br.readLine(); // Skipping csv header
+                while ((line = br.readLine()) != null) {
+                    if (line.equals("")) { // Skip empty lines
+                        continue;
+                    }
+                    loadRow(line);
                 }
-                String[] row = line.split(",");
-                addOrUpdateContract(
-                        generateContractByRow(row)
-                );
             }
         } catch (IOException ex) {
-            throw new IOException(ex.getMessage(), ex);
+            IOException wrapped = new IOException(ex.getMessage(), ex);
+            failure = wrapped;
+            throw wrapped;
+        } catch (RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            long rows = appliedRows - rowsBefore;
+            Metrics.getInstance().onLoad(rows, getConsumedBytes(csv, rows, failure), System.nanoTime() - start);
+            try {
+                // One fsync for the whole file, the rows loaded before an invalid one are journaled too
+                commitJournal(failure);
+            } finally {
+                // Queries see the whole file at once, and only once it's durable
+                QueryView.unlockWriter();
+            }
+        }
+    }
+
+    /**
+     * Function to get the bytes of a file which a load consumed: a failed load stops at the row after
+     * the applied ones
+     * @param csv
+     * @param rows
+     * Applied rows
+     * @param failure
+     * The error of the load, null if it succeeded
+     * @return long
+     */
+    private static long getConsumedBytes(File csv, long rows, Exception failure) {
+        if (Objects.isNull(failure)) {
+            return csv.length();
+        }
+        try {
+            return ContractCsvReader.findRowsEnd(csv.toPath(), rows + 1);
+        } catch (IOException ex) {
+            return csv.length();
+        }
+    }
+
+    /**
+     * Function to force the journal after a load, without hiding the error of a failed load
+     * @param failure
+     * The error of the load, null if it succeeded
+     * @throws IOException
+     * If the commit fails after a successful load
+     */
+    private static void commitJournal(Exception failure) throws IOException {
+        try {
+            JournalHandler.getInstance().commit();
+        } catch (IOException ex) {
+            if (Objects.isNull(failure)) {
+                throw ex;
+            }
+            failure.addSuppressed(ex);
+        }
+    }
+
+    /**
+     * Function to apply a contract update read from the journal
+     * @param partnerId
+     * @param contractId
+     * @param type
+     * @param epochDay
+     * @param action
+     * @throws IOException
+     */
+    void replayContract(long partnerId, long contractId, ContractType type, int epochDay,
+                        ContractAction action) throws IOException {
+        Partner partner = PartnerHandler.getInstance().getPartners().get(partnerId);
+        if (Objects.isNull(partner)) {
+            throw new IOException("Partner not found with id=" + partnerId);
+        }
+        addOrUpdateContract(partner.getIndex(), contractId, type, epochDay, action);
+    }
+
+    private void loadRow(String line) throws IOException {
+        String[] row = line.split(",");
+        addOrUpdateContract(
+                generateContractByRow(row)
+        );
+    }
+
+    /**
+     * Function to count rows applied by a partitioned load, which doesn't go through addOrUpdateContract
+     * @param rows
+     */
+    void addAppliedRows(long rows) {
+        appliedRows += rows;
+    }
+
+    /**
+     * Function to get a handler which validates and applies rows one by one
+     * @return ContractCsvReader.RowHandler
+     */
+    ContractCsvReader.RowHandler getRowHandler() {
+        HashMap<Long, Partner> partners = PartnerHandler.getInstance().getPartners();
+        return new ContractCsvReader.RowHandler() {
+            @Override
+            public boolean onRow(long partnerId, long contractId, ContractType type, int epochDay,
+                                 ContractAction action) throws IOException {
+                Partner partner = partners.get(partnerId);
+                if (Objects.isNull(partner)) {
+                    // Let the normal validation report it
+                    return false;
+                }
+                addOrUpdateContract(partner.getIndex(), contractId, type, epochDay, action);
+                return true;
+            }
+
+            @Override
+            public void onMalformedRow(String line) throws IOException {
+                loadRow(line);
+            }
+        };
+    }
+
+    /**
+     * Function to load a csv file by parsing chunks of it on the fork-join pool.
+     * Parsed chunks are applied strictly in file order, so BEGIN/END pairing, duplicate detection
+     * and the rows loaded before an invalid one are the same as loading it line by line.
+     * Only a few chunks are parsed ahead of the one being applied, to keep memory bounded.
+     * @param csv
+     * @throws IOException
+     */
+    private void loadContractsParallel(File csv) throws IOException {
+        ContractCsvReader.RowHandler handler = getRowHandler();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int maxInFlight = Math.max(2, 2 * pool.getParallelism());
+        ArrayDeque<ForkJoinTask<ContractCsvReader.Chunk>> inFlight = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+            long[] offsets = ContractCsvReader.splitChunks(channel, PARALLEL_CHUNK_SIZE);
+            int chunks = offsets.length - 1;
+            int next = 0;
+            try {
+                for (int i = 0; i < chunks; i++) {
+                    while (next < chunks && next < i + maxInFlight) {
+                        long from = offsets[next], to = offsets[next + 1];
+                        boolean withHeader = next == 0;
+                        inFlight.add(pool.submit(() -> {
+                            try {
+                                return new ContractCsvReader().readChunk(channel, from, to, withHeader);
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                        }));
+                        next++;
+                    }
+                    inFlight.poll().join().replay(handler);
+                }
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            } finally {
+                inFlight.forEach(task -> task.cancel(true));
+            }
         }
     }
 }
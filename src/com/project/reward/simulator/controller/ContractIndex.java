@@ -0,0 +1,394 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.data.Contract.ContractType;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Index of contracts per partner. The contract slots of every partner are kept in an array sorted
+ * by start day, so the contracts started inside a date window can be found with a binary
+ * search and only those have to be checked against their end day.
+ *
+ * Queries run on read-only snapshots (see {@link #snapshot(ContractStore)}). The writer copies the
+ * entry of a partner (not its slots, which are only appended to) the first time it changes after a
+ * snapshot, and sorts into new arrays, so a snapshot never sees a change.
+ */
+class ContractIndex {
+
+    // Slots of a partner, sorted by start day when they are in a snapshot
+    private static final class PartnerSlots {
+
+        private int[] slots;
+
+        private int size;
+
+        private boolean sorted;
+
+        // Generation of the writer in which this entry was created, older entries are shared with a snapshot
+        private final int generation;
+
+        private PartnerSlots(int[] slots, int size, boolean sorted, int generation) {
+            this.slots = slots;
+            this.size = size;
+            this.sorted = sorted;
+            this.generation = generation;
+        }
+    }
+
+    private final ContractStore store;
+
+    private PartnerSlots[] partners = new PartnerSlots[16];
+
+    // Whether the partners array is shared with the last snapshot
+    private boolean partnersShared = false;
+
+    private int generation = 0;
+
+    // Partners which got a contract out of start day order since the last snapshot
+    private int[] unsorted = new int[16];
+
+    private int numUnsorted = 0;
+
+    ContractIndex(ContractStore store) {
+        this.store = store;
+    }
+
+    private ContractIndex(ContractStore store, PartnerSlots[] partners) {
+        this.store = store;
+        this.partners = partners;
+    }
+
+    /**
+     * Function to add a newly created contract to the index of its partner.
+     * End day updates don't need to be indexed since they are read from the store.
+     * @param slot
+     */
+    void add(int slot) {
+        int partner = store.getPartner(slot);
+        if (partner >= partners.length) {
+            partners = Arrays.copyOf(partners, Math.max(partner + 1, partners.length * 2));
+            partnersShared = false;
+        }
+        if (addToPartner(partner, slot)) {
+            markUnsorted(partner);
+        }
+    }
+
+    /**
+     * Function to prepare the index for {@link #addToPartner} calls from several threads,
+     * each one adding to its own partners
+     * @param partnerCount
+     */
+    void prepareConcurrentAdd(int partnerCount) {
+        if (partnerCount > partners.length || partnersShared) {
+            partners = Arrays.copyOf(partners, Math.max(partnerCount, partners.length));
+            partnersShared = false;
+        }
+    }
+
+    /**
+     * Function to add a contract to the index of its partner, without keeping track of unsorted partners
+     * @param partner
+     * @param slot
+     * @return boolean
+     * true if the partner's slots are not sorted anymore, then it must be passed to {@link #markUnsorted}
+     */
+    boolean addToPartner(int partner, int slot) {
+        boolean unsortedNow = false;
+        PartnerSlots entry = partners[partner];
+        if (Objects.isNull(entry)) {
+            entry = new PartnerSlots(new int[4], 0, true, generation);
+            setEntry(partner, entry);
+        } else if (entry.generation != generation) {
+            entry = new PartnerSlots(entry.slots, entry.size, entry.sorted, generation);
+            setEntry(partner, entry);
+        }
+        if (entry.size == entry.slots.length) {
+            entry.slots = Arrays.copyOf(entry.slots, entry.size * 2);
+        }
+        // Rows usually come in date order, so we only need to re-sort when they don't
+        if (entry.sorted && entry.size > 0 && store.getStartDay(entry.slots[entry.size - 1]) > store.getStartDay(slot)) {
+            entry.sorted = false;
+            unsortedNow = true;
+        }
+        // Positions after the size of a snapshot's entry are not visible to it
+        entry.slots[entry.size++] = slot;
+        return unsortedNow;
+    }
+
+    void markUnsorted(int partner) {
+        if (numUnsorted == unsorted.length) {
+            unsorted = Arrays.copyOf(unsorted, numUnsorted * 2);
+        }
+        unsorted[numUnsorted++] = partner;
+    }
+
+    private void setEntry(int partner, PartnerSlots entry) {
+        if (partnersShared) {
+            partners = partners.clone();
+            partnersShared = false;
+        }
+        partners[partner] = entry;
+    }
+
+    /**
+     * Function to sort the slots of a partner by start day into a new array,
+     * using (start day, slot) pairs packed into longs
+     * @param entry
+     */
+    private void sort(PartnerSlots entry) {
+        long[] keys = new long[entry.size];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) store.getStartDay(entry.slots[i]) << 32) | entry.slots[i];
+        }
+        Arrays.sort(keys);
+        int[] sortedSlots = new int[Math.max(4, entry.size)];
+        for (int i = 0; i < keys.length; i++) {
+            sortedSlots[i] = (int) keys[i];
+        }
+        entry.slots = sortedSlots;
+        entry.sorted = true;
+    }
+
+    /**
+     * Function to create a read-only view of the index as it is now, which is not affected by later changes
+     * @param storeSnapshot
+     * Snapshot of the store taken at the same time
+     * @return ContractIndex
+     */
+    ContractIndex snapshot(ContractStore storeSnapshot) {
+        // Unsorted entries were changed in this generation, so they are not shared yet
+        for (int i = 0; i < numUnsorted; i++) {
+            sort(partners[unsorted[i]]);
+        }
+        numUnsorted = 0;
+
+        ContractIndex snapshot = new ContractIndex(storeSnapshot, partners);
+        partnersShared = true;
+        generation++;
+        return snapshot;
+    }
+
+    /**
+     * Function to find the first position whose start day is after the given day
+     * @param entry
+     * @param day
+     * @return int
+     */
+    private int firstStartedAfter(PartnerSlots entry, int day) {
+        int[] partnerSlots = entry.slots;
+        int lo = 0, hi = entry.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (store.getStartDay(partnerSlots[mid]) > day) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private PartnerSlots getEntry(int partner) {
+        return partner < partners.length ? partners[partner] : null;
+    }
+
+    /**
+     * Function to count the active contracts of a partner, meaning contracts started strictly
+     * between validFrom and validTo which are not ended by validTo.
+     * Only valid on snapshots.
+     * @param partner
+     * @param validFrom
+     * @param validTo
+     * @param counts
+     * Receives the counts: active at 0 and the contracts looked at (started in the window) at 3
+     */
+    void countActive(int partner, int validFrom, int validTo, int[] counts) {
+        counts[0] = counts[3] = 0;
+        PartnerSlots entry = getEntry(partner);
+        if (Objects.isNull(entry)) {
+            return;
+        }
+        int[] partnerSlots = entry.slots;
+        int first = firstStartedAfter(entry, validFrom);
+        int i = first;
+        for (; i < entry.size; i++) {
+            int slot = partnerSlots[i];
+            if (store.getStartDay(slot) >= validTo) {
+                break;
+            }
+            if (store.getEndDay(slot) > validTo) {
+                counts[0]++;
+            }
+        }
+        counts[3] = i - first;
+    }
+
+    /**
+     * Function to count the active contracts of a partner, together with the active contracts started
+     * in a given quarter of year and the active rabbit contracts started in a given year.
+     * Only valid on snapshots.
+     * @param partner
+     * @param validFrom
+     * @param validTo
+     * @param quarterOfYear
+     * 0 to 3
+     * @param year
+     * @param counts
+     * Receives the counts: active, started in the quarter of year, rabbits started in the quarter of year and the year,
+     * and the contracts looked at (started in the window)
+     */
+    void countActive(int partner, int validFrom, int validTo, int quarterOfYear, int year, int[] counts) {
+        counts[0] = counts[1] = counts[2] = counts[3] = 0;
+        PartnerSlots entry = getEntry(partner);
+        if (Objects.isNull(entry)) {
+            return;
+        }
+        int[] partnerSlots = entry.slots;
+        int rabbit = ContractType.Rabbit.ordinal();
+        int first = firstStartedAfter(entry, validFrom);
+        int i = first;
+        for (; i < entry.size; i++) {
+            int slot = partnerSlots[i];
+            if (store.getStartDay(slot) >= validTo) {
+                break;
+            }
+            if (store.getEndDay(slot) > validTo) {
+                counts[0]++;
+                int startQuarter = store.getStartQuarter(slot);
+                if ((startQuarter & 3) == quarterOfYear) {
+                    counts[1]++;
+                    if (startQuarter >> 2 == year && store.getTypeOrdinal(slot) == rabbit) {
+                        counts[2]++;
+                    }
+                }
+            }
+        }
+        counts[3] = i - first;
+    }
+
+    /**
+     * Function to count the active contracts of a partner in several windows which end at the same day,
+     * in one pass: a contract started after the validFrom of k windows is active in the first k of them.
+     * Also counts the active contracts started in a given quarter of year, and the ones started in
+     * a given quarter by type, which are active in every window.
+     * Only valid on snapshots.
+     * @param partner
+     * @param validFroms
+     * Start of every window, ascending
+     * @param validTo
+     * @param quarterOfYear
+     * 0 to 3
+     * @param year
+     * @param activeCounts
+     * Receives the active contracts of every window
+     * @param directCounts
+     * Receives the active contracts started in the quarter of year of every window
+     * @param newCountsByType
+     * Receives the active contracts started in the quarter of year and the year, by type ordinal
+     * @return int
+     * The contracts looked at
+     */
+    int countActive(int partner, int[] validFroms, int validTo, int quarterOfYear, int year,
+                    int[] activeCounts, int[] directCounts, int[] newCountsByType) {
+        int windows = validFroms.length;
+        Arrays.fill(activeCounts, 0, windows, 0);
+        Arrays.fill(directCounts, 0, windows, 0);
+        Arrays.fill(newCountsByType, 0);
+        PartnerSlots entry = getEntry(partner);
+        if (Objects.isNull(entry)) {
+            return 0;
+        }
+        int[] partnerSlots = entry.slots;
+        int newQuarter = year * 4 + quarterOfYear;
+        int first = firstStartedAfter(entry, validFroms[0]);
+        // Windows whose validFrom is before the start of the current contract
+        int k = 1;
+        int i = first;
+        for (; i < entry.size; i++) {
+            int slot = partnerSlots[i];
+            int startDay = store.getStartDay(slot);
+            if (startDay >= validTo) {
+                break;
+            }
+            while (k < windows && validFroms[k] < startDay) {
+                k++;
+            }
+            if (store.getEndDay(slot) > validTo) {
+                // Counted in the last of its windows for now
+                activeCounts[k - 1]++;
+                int startQuarter = store.getStartQuarter(slot);
+                if ((startQuarter & 3) == quarterOfYear) {
+                    directCounts[k - 1]++;
+                    if (startQuarter == newQuarter) {
+                        newCountsByType[store.getTypeOrdinal(slot)]++;
+                    }
+                }
+            }
+        }
+        for (int window = windows - 2; window >= 0; window--) {
+            activeCounts[window] += activeCounts[window + 1];
+            directCounts[window] += directCounts[window + 1];
+        }
+        return i - first;
+    }
+
+    /**
+     * Function to get the number of contracts of a partner
+     * @param partner
+     * @return int
+     */
+    int getContractCount(int partner) {
+        PartnerSlots entry = getEntry(partner);
+        return Objects.isNull(entry) ? 0 : entry.size;
+    }
+
+    /**
+     * Function to get the start day of the first contract of a partner.
+     * Only valid on snapshots.
+     * @param partner
+     * @return int
+     * Integer.MAX_VALUE if the partner has no contracts
+     */
+    int getFirstStartDay(int partner) {
+        PartnerSlots entry = getEntry(partner);
+        if (Objects.isNull(entry) || entry.size == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return store.getStartDay(entry.slots[0]);
+    }
+
+    /**
+     * Function to collect the quarters in which the contracts of a partner are active.
+     * Contracts which are never active are skipped.
+     * Only valid on snapshots.
+     * @param partner
+     * @param firstQuarters
+     * Receives the first active quarter ordinal of every contract, from offset on
+     * @param lastQuarters
+     * Receives the last active quarter ordinal of every contract, from offset on
+     * @param offset
+     * @return int
+     * Offset after the collected contracts
+     */
+    int collectActiveQuarters(int partner, int[] firstQuarters, int[] lastQuarters, int offset) {
+        PartnerSlots entry = getEntry(partner);
+        if (Objects.isNull(entry)) {
+            return offset;
+        }
+        int[] partnerSlots = entry.slots;
+        for (int i = 0; i < entry.size; i++) {
+            int slot = partnerSlots[i];
+            int startDay = store.getStartDay(slot);
+            int first = RewardCube.firstActiveQuarter(startDay);
+            int last = RewardCube.lastActiveQuarter(startDay, store.getEndDay(slot));
+            if (first <= last) {
+                firstQuarters[offset] = first;
+                lastQuarters[offset] = last;
+                offset++;
+            }
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,385 @@
+package com.project.reward.simulator.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous ingestion of contract rows, from an append-only csv file which is tailed (or a named pipe,
+ * which is read the same way) and from rows submitted in-process.
+ *
+ * Sources hand over blocks of complete lines to one applier thread, which parses them and applies them
+ * in micro-batches: as soon as a batch has batchRows rows, or its oldest row has waited maxDelayMillis.
+ * Every batch is one change (see QueryView), so its rows become queryable together, and one journal commit.
+ * Rows are validated like the rows of a loaded file, but an invalid row is only rejected and counted
+ * instead of stopping the ingestion.
+ *
+ * Read rows which are not applied yet are limited to PENDING_BATCHES batches: a source waits for room
+ * when the applier falls behind, so a tailed file is read more slowly, the writer of a pipe blocks and
+ * so does submit. The time from reading a row to it being queryable is recorded in the Metrics.
+ */
+public class ContractIngestion {
+
+    private static final ContractIngestion instance = new ContractIngestion();
+
+    public static final int DEFAULT_BATCH_ROWS = 1 << 12;
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 100;
+
+    // Read rows which aren't applied yet, in batches
+    private static final int PENDING_BATCHES = 16;
+
+    private static final int READ_SIZE = 1 << 16;
+
+    // Wait before reading again at the end of a tailed file
+    private static final long POLL_MILLIS = 50;
+
+    // Complete lines read at the same time
+    private static final class Block {
+
+        private final byte[] bytes;
+
+        private final int length;
+
+        private final boolean withHeader;
+
+        // Room taken from the pending rows
+        private final int rows;
+
+        private final long readNanos;
+
+        private Block(byte[] bytes, int length, boolean withHeader, int rows, long readNanos) {
+            this.bytes = bytes;
+            this.length = length;
+            this.withHeader = withHeader;
+            this.rows = rows;
+            this.readNanos = readNanos;
+        }
+    }
+
+    private final LinkedBlockingQueue<Block> blocks = new LinkedBlockingQueue<>();
+
+    private Semaphore room;
+
+    private int maxPendingRows;
+
+    private int batchRows;
+
+    private long maxDelayNanos;
+
+    private volatile boolean running = false;
+
+    private Thread applier;
+
+    private Thread tailer;
+
+    private String tailedPath;
+
+    private volatile long appliedRows = 0;
+
+    private volatile long rejectedRows = 0;
+
+    private volatile String lastError;
+
+    private ContractIngestion() {
+    }
+
+    public static ContractIngestion getInstance() {
+        return instance;
+    }
+
+    /**
+     * Function to start the applier, which applies the rows submitted in-process
+     * @param batchRows
+     * Maximum rows of a batch
+     * @param maxDelayMillis
+     * Maximum time a row waits for its batch to be applied
+     * @throws Exception
+     */
+    public synchronized void start(int batchRows, long maxDelayMillis) throws Exception {
+        if (running) {
+            throw new Exception("Ingestion is already running");
+        }
+        if (batchRows < 1 || maxDelayMillis < 0) {
+            throw new Exception("Batch rows must be positive and the maximum delay can't be negative");
+        }
+        this.batchRows = batchRows;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxPendingRows = batchRows * PENDING_BATCHES;
+        this.room = new Semaphore(maxPendingRows);
+        appliedRows = rejectedRows = 0;
+        lastError = null;
+        running = true;
+        applier = newThread("contract-ingest", this::applyBatches);
+        applier.start();
+    }
+
+    /**
+     * Function to start the applier and tail a csv file: rows are applied as they are appended
+     * @param filePath
+     * Append-only csv file with a header, or a named pipe
+     * @param batchRows
+     * @param maxDelayMillis
+     * @throws Exception
+     */
+    public synchronized void tail(String filePath, int batchRows, long maxDelayMillis) throws Exception {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            throw new IOException("File not found: " + filePath);
+        }
+        start(batchRows, maxDelayMillis);
+        tailedPath = filePath;
+        tailer = newThread("contract-tail", () -> readFile(file));
+        tailer.start();
+    }
+
+    /**
+     * Function to submit a csv row, or several separated by newlines (without a header), waiting while
+     * the applier is behind. Every row takes its own room from the pending rows.
+     * @param row
+     * @throws Exception
+     * If the ingestion is not running, or is stopped while waiting
+     */
+    public void submit(String row) throws Exception {
+        byte[] bytes = (row + "\n").getBytes(Charset.defaultCharset());
+        int lines = 0;
+        for (byte b : bytes) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        if (!enqueue(bytes, bytes.length, false, lines)) {
+            throw new Exception("Ingestion is not running");
+        }
+    }
+
+    /**
+     * Function to stop reading, apply the rows which are already read and stop the applier
+     * @throws InterruptedException
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        if (Objects.nonNull(tailer)) {
+            // Also stops a blocked read
+            tailer.interrupt();
+            tailer.join(TimeUnit.SECONDS.toMillis(1));
+            tailer = null;
+            tailedPath = null;
+        }
+        applier.join();
+        applier = null;
+    }
+
+    /**
+     * Function to describe the state of the ingestion
+     * @return String
+     */
+    public synchronized String getStatus() {
+        if (!running) {
+            return "Ingestion is not running";
+        }
+        String source = Objects.isNull(tailedPath) ? "submitted rows" : tailedPath;
+        return String.format("Ingesting %s in batches of %d rows or %d ms: %d rows applied, %d rejected, %d pending%s",
+                source, batchRows, TimeUnit.NANOSECONDS.toMillis(maxDelayNanos), appliedRows, rejectedRows,
+                maxPendingRows - room.availablePermits(),
+                Objects.isNull(lastError) ? "" : ", last error: " + lastError);
+    }
+
+    private static Thread newThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Function to hand over complete lines to the applier, waiting for room first
+     * @param bytes
+     * @param length
+     * @param withHeader
+     * @param rows
+     * Number of lines
+     * @return boolean
+     * false if the ingestion is not running, or was stopped while waiting
+     * @throws InterruptedException
+     */
+    private boolean enqueue(byte[] bytes, int length, boolean withHeader, int rows) throws InterruptedException {
+        Semaphore taken;
+        int permits;
+        synchronized (this) {
+            if (!running) {
+                return false;
+            }
+            taken = room;
+            // A block larger than the limit only has to wait until nothing else is pending
+            permits = Math.min(rows, maxPendingRows);
+        }
+        if (!taken.tryAcquire(permits)) {
+            long start = System.nanoTime();
+            taken.acquire(permits);
+            Metrics.getInstance().onIngestBackpressure(System.nanoTime() - start);
+        }
+        synchronized (this) {
+            // stop() clears running before the applier drains, so a block added here is always applied
+            if (!running || taken != room) {
+                taken.release(permits);
+                return false;
+            }
+            blocks.add(new Block(bytes, length, withHeader, permits, System.nanoTime()));
+        }
+        return true;
+    }
+
+    /**
+     * Function to read a file as it grows, handing over the complete lines
+     * @param file
+     */
+    private void readFile(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            boolean withHeader = true;
+            while (running) {
+                int read = channel.read(buffer);
+                byte[] bytes = buffer.array();
+                int limit = buffer.position();
+                int end = limit;
+                while (end > 0 && bytes[end - 1] != '\n' && bytes[end - 1] != '\r') {
+                    end--;
+                }
+                if (end > 0) {
+                    // Blocks of at most batchRows lines, so they fit in a batch
+                    int from = 0;
+                    while (from < end) {
+                        int to = from, lines = 0;
+                        while (to < end && lines < batchRows) {
+                            if (bytes[to++] == '\n') {
+                                lines++;
+                            }
+                        }
+                        byte[] block = new byte[to - from];
+                        System.arraycopy(bytes, from, block, 0, block.length);
+                        if (!enqueue(block, block.length, withHeader, Math.max(lines, 1))) {
+                            return;
+                        }
+                        withHeader = false;
+                        from = to;
+                    }
+                    buffer.flip().position(end);
+                    buffer.compact();
+                } else if (limit == buffer.capacity()) {
+                    // A very long line
+                    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                    grown.put(bytes, 0, limit);
+                    buffer = grown;
+                }
+                if (read < 0) {
+                    // End of the file for now
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+        } catch (InterruptedException | ClosedByInterruptException ex) {
+            // Stopped
+        } catch (IOException ex) {
+            lastError = "Reading " + file + " failed: " + ex.getMessage();
+        }
+    }
+
+    private void applyBatches() {
+        List<Block> batch = new ArrayList<>();
+        int rows = 0;
+        try {
+            while (running || !blocks.isEmpty() || !batch.isEmpty()) {
+                long wait = batch.isEmpty()
+                        ? TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS)
+                        : batch.get(0).readNanos + maxDelayNanos - System.nanoTime();
+                Block block = blocks.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                if (Objects.nonNull(block) && !batch.isEmpty() && rows + block.rows > batchRows) {
+                    apply(batch);
+                    batch.clear();
+                    rows = 0;
+                }
+                if (Objects.nonNull(block)) {
+                    batch.add(block);
+                    rows += block.rows;
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                boolean due = rows >= batchRows || !running
+                        || System.nanoTime() - batch.get(0).readNanos >= maxDelayNanos;
+                if (due) {
+                    apply(batch);
+                    batch.clear();
+                    rows = 0;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Function to parse and apply a batch of rows as one change
+     * @param batch
+     */
+    private void apply(List<Block> batch) {
+        ContractHandler contracts = ContractHandler.getInstance();
+        List<ContractCsvReader.Chunk> chunks = new ArrayList<>(batch.size());
+        ContractCsvReader reader = new ContractCsvReader();
+        long applied = 0, rejected = 0;
+        try {
+            // Parsed before taking the writer lock, so queries keep seeing new views meanwhile
+            for (Block block : batch) {
+                chunks.add(reader.parseChunk(block.bytes, block.length, block.withHeader));
+            }
+            QueryView.lockWriter();
+            try {
+                ContractCsvReader.RowHandler handler = contracts.getRowHandler();
+                for (ContractCsvReader.Chunk chunk : chunks) {
+                    for (int row = 0; row < chunk.size(); row++) {
+                        try {
+                            chunk.replayRow(row, handler);
+                            applied++;
+                        } catch (IOException | RuntimeException ex) {
+                            rejected++;
+                            lastError = ex.getMessage();
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    JournalHandler.getInstance().commit();
+                } finally {
+                    QueryView.unlockWriter();
+                }
+            }
+        } catch (IOException ex) {
+            lastError = ex.getMessage();
+        } finally {
+            long now = System.nanoTime();
+            Metrics metrics = Metrics.getInstance();
+            for (int i = 0; i < batch.size(); i++) {
+                int blockRows = i < chunks.size() ? chunks.get(i).size() : 0;
+                for (int row = 0; row < blockRows; row++) {
+                    metrics.recordIngestLatency(now - batch.get(i).readNanos);
+                }
+                room.release(batch.get(i).rows);
+            }
+            metrics.onIngestBatch(applied, rejected);
+            appliedRows += applied;
+            rejectedRows += rejected;
+        }
+    }
+}
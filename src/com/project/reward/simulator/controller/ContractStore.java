@@ -0,0 +1,329 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.data.Contract;
+import com.project.reward.simulator.data.Contract.ContractType;
+import com.project.reward.simulator.data.Partner;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Columnar storage of all the contracts. Every contract is a slot in parallel primitive arrays
+ * (id, partner index, type, start and end epoch-day and the quarter ordinal of the start day),
+ * found by id through a primitive hash map.
+ * Contract objects are only created at the API edge, see {@link #toContract(int, PartnerLinks)}.
+ *
+ * Queries run on read-only snapshots (see {@link #snapshot()}) while the writer keeps adding to the store.
+ * All the columns are append-only and shared with the snapshots, except the end days, which are kept
+ * in chunks and copied on the first write after a snapshot.
+ *
+ * The id map is split into shards by id, and slots can be reserved in ranges, so a partitioned load
+ * (see PartitionedLoad) can fill the columns and the shards from several threads without locking.
+ */
+class ContractStore {
+
+    // End day of contracts which are not ended
+    static final int NO_END = Integer.MAX_VALUE;
+
+    private static final ContractType[] TYPES = ContractType.values();
+
+    private int size = 0;
+
+    private long[] ids = new long[1024];
+
+    private int[] partners = new int[1024];
+
+    private byte[] types = new byte[1024];
+
+    private int[] startDays = new int[1024];
+
+    // Quarter ordinal (year * 4 + quarter - 1) of the start days, so queries don't need to convert dates
+    private int[] startQuarters = new int[1024];
+
+    private static final int CHUNK_BITS = 14;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    // Chunks of end days, with the generation in which the writer copied (or created) each of them
+    private int[][] endDays = new int[0][];
+
+    private int[] chunkGenerations = new int[0];
+
+    // Incremented by every snapshot, chunks of older generations are shared with a snapshot
+    private int generation = 0;
+
+    static final int ID_SHARDS = 64;
+
+    // Slot by id, split into shards by id. Snapshots share the shards of the writer, see LongIntMap.snapshot
+    private final LongIntMap[] slotById;
+
+    private final boolean isSnapshot;
+
+    ContractStore() {
+        slotById = newShards(1024);
+        isSnapshot = false;
+    }
+
+    private static LongIntMap[] newShards(int expectedSize) {
+        LongIntMap[] shards = new LongIntMap[ID_SHARDS];
+        for (int i = 0; i < ID_SHARDS; i++) {
+            shards[i] = new LongIntMap(expectedSize / ID_SHARDS);
+        }
+        return shards;
+    }
+
+    /**
+     * Function to get the shard of the id map which has a contract id
+     * @param id
+     * @return int
+     */
+    static int idShard(long id) {
+        // Top bits of the hash, the shards use the lower ones
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 58);
+    }
+
+    private ContractStore(ContractStore writer) {
+        this.size = writer.size;
+        this.ids = writer.ids;
+        this.partners = writer.partners;
+        this.types = writer.types;
+        this.startDays = writer.startDays;
+        this.startQuarters = writer.startQuarters;
+        this.endDays = writer.endDays.clone();
+        this.slotById = new LongIntMap[ID_SHARDS];
+        for (int i = 0; i < ID_SHARDS; i++) {
+            this.slotById[i] = writer.slotById[i].snapshot();
+        }
+        this.isSnapshot = true;
+    }
+
+    /**
+     * Constructor to create a store from columns, e.g. read from a snapshot
+     * @param ids
+     * @param partners
+     * @param types
+     * Ordinals of ContractType
+     * @param startDays
+     * @param endDays
+     * @throws IOException
+     */
+    ContractStore(long[] ids, int[] partners, byte[] types, int[] startDays, int[] endDays) throws IOException {
+        this.size = ids.length;
+        this.ids = ids;
+        this.partners = partners;
+        this.types = types;
+        this.startDays = startDays;
+        this.startQuarters = new int[size];
+        for (int slot = 0; slot < size; slot++) {
+            startQuarters[slot] = EpochDays.quarterOrdinal(startDays[slot]);
+        }
+        this.slotById = newShards(size);
+        this.isSnapshot = false;
+        for (int from = 0; from < size; from += CHUNK_SIZE) {
+            addChunk();
+            System.arraycopy(endDays, from, this.endDays[from >> CHUNK_BITS], 0, Math.min(CHUNK_SIZE, size - from));
+        }
+        for (int slot = 0; slot < size; slot++) {
+            if (find(ids[slot]) >= 0) {
+                throw new IOException("Duplicate contract found with the same id: " + ids[slot]);
+            }
+            if (types[slot] < 0 || types[slot] >= TYPES.length) {
+                throw new IOException("Invalid contract type for contract id: " + ids[slot]);
+            }
+            putId(ids[slot], slot);
+        }
+    }
+
+    /**
+     * Function to find the slot of a contract
+     * @param id
+     * @return int
+     * -1 if there is no contract with this id
+     */
+    int find(long id) {
+        int slot = slotById[idShard(id)].get(id);
+        if (isSnapshot && (slot >= size || (slot >= 0 && ids[slot] != id))) {
+            // Added by the writer after the snapshot
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Function to add a contract id to the id map. Threads can add ids of different shards at the same time.
+     * @param id
+     * @param slot
+     */
+    void putId(long id, int slot) {
+        slotById[idShard(id)].put(id, slot);
+    }
+
+    /**
+     * Function to add a new contract, which is not ended yet
+     * @param id
+     * @param partner
+     * Partner index
+     * @param type
+     * @param startDay
+     * @return int
+     * Slot of the new contract
+     */
+    int add(long id, int partner, ContractType type, int startDay) {
+        if (size == ids.length) {
+            grow(size + 1);
+        }
+        if ((size >> CHUNK_BITS) == endDays.length) {
+            addChunk();
+        }
+        int slot = size++;
+        set(slot, id, partner, type, startDay);
+        putId(id, slot);
+        return slot;
+    }
+
+    private void grow(int capacity) {
+        capacity = Math.max(capacity, Math.max(1024, ids.length * 2));
+        ids = Arrays.copyOf(ids, capacity);
+        partners = Arrays.copyOf(partners, capacity);
+        types = Arrays.copyOf(types, capacity);
+        startDays = Arrays.copyOf(startDays, capacity);
+        startQuarters = Arrays.copyOf(startQuarters, capacity);
+    }
+
+    /**
+     * Function to reserve a range of slots for new contracts, which are filled with {@link #set}
+     * and added to the id map with {@link #putId}. Threads can fill different slots at the same time.
+     * @param count
+     * @return int
+     * First reserved slot
+     */
+    int reserve(int count) {
+        if (size + count > ids.length) {
+            grow(size + count);
+        }
+        if (size > 0) {
+            // The last chunk may be shared with a snapshot, and would be copied by setEndDay
+            unshareEndDays((size - 1) >> CHUNK_BITS);
+        }
+        while ((size + count - 1) >> CHUNK_BITS >= endDays.length) {
+            addChunk();
+        }
+        int first = size;
+        size += count;
+        return first;
+    }
+
+    /**
+     * Function to fill a slot with a new contract, which is not ended yet
+     * @param slot
+     * @param id
+     * @param partner
+     * Partner index
+     * @param type
+     * @param startDay
+     */
+    void set(int slot, long id, int partner, ContractType type, int startDay) {
+        ids[slot] = id;
+        partners[slot] = partner;
+        types[slot] = (byte) type.ordinal();
+        startDays[slot] = startDay;
+        startQuarters[slot] = EpochDays.quarterOrdinal(startDay);
+        // Slots after the size of a snapshot are not visible to it, so the chunk doesn't need to be copied
+        endDays[slot >> CHUNK_BITS][slot & (CHUNK_SIZE - 1)] = NO_END;
+    }
+
+    private void addChunk() {
+        endDays = Arrays.copyOf(endDays, endDays.length + 1);
+        endDays[endDays.length - 1] = new int[CHUNK_SIZE];
+        chunkGenerations = Arrays.copyOf(chunkGenerations, endDays.length);
+        chunkGenerations[endDays.length - 1] = generation;
+    }
+
+    void setEndDay(int slot, int endDay) {
+        int chunk = slot >> CHUNK_BITS;
+        unshareEndDays(chunk);
+        endDays[chunk][slot & (CHUNK_SIZE - 1)] = endDay;
+    }
+
+    /**
+     * Function to copy a chunk of end days if it's shared with a snapshot. Once it's copied,
+     * threads can set the end days of different slots in it at the same time.
+     * @param chunk
+     */
+    void unshareEndDays(int chunk) {
+        if (chunkGenerations[chunk] != generation) {
+            endDays[chunk] = endDays[chunk].clone();
+            chunkGenerations[chunk] = generation;
+        }
+    }
+
+    static int getChunk(int slot) {
+        return slot >> CHUNK_BITS;
+    }
+
+    /**
+     * Function to create a read-only view of the store as it is now, which is not affected by later changes
+     * @return ContractStore
+     */
+    ContractStore snapshot() {
+        ContractStore snapshot = new ContractStore(this);
+        // Every chunk is shared with the snapshot from now on
+        generation++;
+        return snapshot;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte getTypeOrdinal(int slot) {
+        return types[slot];
+    }
+
+    long getId(int slot) {
+        return ids[slot];
+    }
+
+    int getPartner(int slot) {
+        return partners[slot];
+    }
+
+    ContractType getType(int slot) {
+        return TYPES[types[slot]];
+    }
+
+    int getStartDay(int slot) {
+        return startDays[slot];
+    }
+
+    int getStartQuarter(int slot) {
+        return startQuarters[slot];
+    }
+
+    int getEndDay(int slot) {
+        return endDays[slot >> CHUNK_BITS][slot & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * Function to create a Contract object for a slot. The partner is resolved from the links of the
+     * same view, not from the writer's partners, so it only has its id and index.
+     * @param slot
+     * @param links
+     * @return Contract
+     */
+    Contract toContract(int slot, PartnerLinks links) {
+        Partner partner = new Partner();
+        partner.setId(links.getPartnerId(partners[slot]));
+        partner.setIndex(partners[slot]);
+        Contract contract = new Contract();
+        contract.setId(ids[slot]);
+        contract.setPartner(partner);
+        contract.setType(getType(slot));
+        contract.setStartDate(LocalDate.ofEpochDay(startDays[slot]));
+        if (getEndDay(slot) != NO_END) {
+            contract.setEndDate(LocalDate.ofEpochDay(getEndDay(slot)));
+        }
+        return contract;
+    }
+}
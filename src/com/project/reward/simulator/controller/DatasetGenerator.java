@@ -0,0 +1,271 @@
+package com.project.reward.simulator.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+
+/**
+ * Generator of large synthetic datasets, written straight to disk so its size is only limited by the disk.
+ * The same parameters and seed always give the same files:
+ * - partners.txt: REGISTER commands, every parent before its children, which can be run in batch mode
+ * - contracts.csv: contracts which can be loaded with LOAD
+ *
+ * Partners are spread over the levels of the hierarchy with a growing size per level.
+ * The parent of a partner is picked from the level above with a skewed distribution, so a few
+ * partners have most of the children like in a real network. Contracts are sold the same way,
+ * mostly by a few partners. Their start days are spread evenly over the years and written in date
+ * order, then the contracts which are ended (about 40%) get an END row, between 1 day and 3 years later.
+ * Every row is computed from the seed and its number only, nothing is kept in memory.
+ * The benchmarks use the same data, registering the partners directly (see {@link #registerPartners()}).
+ */
+public class DatasetGenerator {
+
+    public static final String PARTNERS_FILE = "partners.txt";
+
+    public static final String CONTRACTS_FILE = "contracts.csv";
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    // Out of 256
+    private static final int ENDED_SHARE = 102;
+
+    private static final int MAX_DURATION_DAYS = 3 * 365;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final int partners;
+
+    private final long contracts;
+
+    private final long seed;
+
+    private final int firstYear;
+
+    private final int years;
+
+    // Number of partners in the levels up to and including each level
+    private final int[] levelEnds;
+
+    /**
+     * @param partners
+     * @param contracts
+     * @param seed
+     * @param depth
+     * Number of levels of the hierarchy
+     * @param firstYear
+     * @param years
+     * Number of years the contracts start in
+     * @throws Exception
+     */
+    public DatasetGenerator(int partners, long contracts, long seed, int depth, int firstYear, int years)
+            throws Exception {
+        if (partners < 1) {
+            throw new Exception("Invalid number of partners: " + partners);
+        }
+        if (contracts < 0) {
+            throw new Exception("Invalid number of contracts: " + contracts);
+        }
+        if (depth < 1) {
+            throw new Exception("Invalid depth: " + depth);
+        }
+        if (firstYear < 1000 || years < 1 || firstYear + years > 5000) {
+            throw new Exception("Invalid years: " + firstYear + " + " + years);
+        }
+        this.partners = partners;
+        this.contracts = contracts;
+        this.seed = seed;
+        this.firstYear = firstYear;
+        this.years = years;
+
+        // One root, then levels growing geometrically up to all the partners
+        int levels = Math.min(depth, partners);
+        levelEnds = new int[levels];
+        levelEnds[0] = 1;
+        for (int level = 1; level < levels; level++) {
+            long end = Math.round(Math.pow(partners, (double) level / (levels - 1)));
+            levelEnds[level] = (int) Math.min(partners - (levels - 1 - level), Math.max(levelEnds[level - 1] + 1, end));
+        }
+        levelEnds[levels - 1] = partners;
+    }
+
+    // SplitMix64
+    private static long mix(long value) {
+        long z = value + GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Uniform in [0, 1)
+    private static double toUnit(long bits) {
+        return (bits >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Function to get the parent of a partner
+     * @param partnerId
+     * 1 to the number of partners
+     * @return long
+     * 0 for the root
+     */
+    private long getParentId(long partnerId) {
+        int i = (int) (partnerId - 1);
+        int level = 0;
+        while (i >= levelEnds[level]) {
+            level++;
+        }
+        if (level == 0) {
+            return 0;
+        }
+        int first = level > 1 ? levelEnds[level - 2] : 0;
+        int size = levelEnds[level - 1] - first;
+        double u = toUnit(mix(seed + i * GOLDEN_GAMMA));
+        // Most children go to the first partners of the level
+        return first + (long) (size * u * u * u) + 1;
+    }
+
+    /**
+     * Function to register the partners of partners.txt without writing it
+     * @throws Exception
+     */
+    public void registerPartners() throws Exception {
+        PartnerHandler partnerHandler = PartnerHandler.getInstance();
+        for (long id = 1; id <= partners; id++) {
+            partnerHandler.registerPartner(id, getParentId(id));
+        }
+    }
+
+    /**
+     * Function to write partners.txt and contracts.csv into a directory, which is created if needed
+     * @param directory
+     * @return long
+     * Number of contract rows
+     * @throws IOException
+     */
+    public long generate(String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        writePartners(dir.resolve(PARTNERS_FILE));
+        return writeContracts(dir.resolve(CONTRACTS_FILE));
+    }
+
+    private void writePartners(Path file) throws IOException {
+        try (RowWriter out = new RowWriter(Files.newOutputStream(file))) {
+            for (long id = 1; id <= partners; id++) {
+                out.write("REGISTER ").writeNumber(id);
+                long parentId = getParentId(id);
+                if (parentId > 0) {
+                    out.write(" ").writeNumber(parentId);
+                }
+                out.write("\n");
+            }
+        }
+    }
+
+    private long writeContracts(Path file) throws IOException {
+        int firstDay = (int) LocalDate.of(firstYear, 1, 1).toEpochDay();
+        int days = (int) LocalDate.of(firstYear + years, 1, 1).toEpochDay() - firstDay;
+        // Dates are formatted once, ends can be up to MAX_DURATION_DAYS after the last start
+        byte[][] dates = new byte[days + MAX_DURATION_DAYS + 1][];
+        for (int day = 0; day < dates.length; day++) {
+            dates[day] = LocalDate.ofEpochDay(firstDay + day).toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        byte[] rabbit = ",Rabbit,".getBytes(StandardCharsets.US_ASCII);
+        byte[] tortoise = ",Tortoise,".getBytes(StandardCharsets.US_ASCII);
+
+        long rows = 0;
+        try (RowWriter out = new RowWriter(Files.newOutputStream(file))) {
+            out.write("partnerId,contractId,contractType,date,action\n");
+            for (int action = 0; action < 2; action++) {
+                for (long k = 0; k < contracts; k++) {
+                    long fields = mix(~seed + k * GOLDEN_GAMMA);
+                    int day = (int) ((double) k * days / contracts);
+                    if (action == 1) {
+                        if ((fields & 0xFF) >= ENDED_SHARE) {
+                            continue;
+                        }
+                        day += 1 + (int) ((fields >>> 40) % MAX_DURATION_DAYS);
+                    }
+                    // Skewed sales: a few ranks sell most contracts, ranks are spread over the partners
+                    double u = toUnit(mix(seed ^ fields));
+                    long rank = (long) (partners * u * u);
+                    long partner = 1 + Long.remainderUnsigned(mix(seed + rank), partners);
+                    out.writeNumber(partner).write(",").writeNumber(k + 1)
+                            .write((fields >>> 8 & 3) == 0 ? rabbit : tortoise)
+                            .write(dates[day]).write(action == 0 ? ",BEGIN\n" : ",END\n");
+                    rows++;
+                }
+            }
+        }
+        return rows;
+    }
+
+    // Buffered writer of ASCII rows which doesn't create Strings for numbers
+    private static class RowWriter implements AutoCloseable {
+
+        private final OutputStream out;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private final byte[] digits = new byte[20];
+
+        private int size = 0;
+
+        private RowWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        private RowWriter write(byte[] bytes) throws IOException {
+            if (size + bytes.length > buffer.length) {
+                flush();
+            }
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        private RowWriter write(String ascii) throws IOException {
+            if (size + ascii.length() > buffer.length) {
+                flush();
+            }
+            for (int i = 0; i < ascii.length(); i++) {
+                buffer[size++] = (byte) ascii.charAt(i);
+            }
+            return this;
+        }
+
+        // Only for non negative numbers
+        private RowWriter writeNumber(long value) throws IOException {
+            int length = 0;
+            do {
+                digits[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            if (size + length > buffer.length) {
+                flush();
+            }
+            while (length > 0) {
+                buffer[size++] = digits[--length];
+            }
+            return this;
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, size);
+            size = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.project.reward.simulator.controller;
+
+/**
+ * Date arithmetic on epoch-days (days since 1970-01-01, see LocalDate.toEpochDay()) and quarter
+ * ordinals (year * 4 + quarter - 1), without creating LocalDate objects in the hot paths.
+ * Uses the proleptic Gregorian calendar like LocalDate, with years counted from March so that
+ * the leap day is the last day of the year.
+ */
+final class EpochDays {
+
+    // Days from 0000-03-01 to 1970-01-01
+    private static final int DAYS_0000_TO_1970 = 719468;
+
+    private static final int DAYS_PER_400_YEARS = 146097;
+
+    private EpochDays() {
+    }
+
+    /**
+     * Function to get the ordinal of the quarter that the given day belongs to
+     * @param epochDay
+     * @return int
+     * year * 4 + quarter - 1
+     */
+    static int quarterOrdinal(int epochDay) {
+        int days = epochDay + DAYS_0000_TO_1970;
+        int era = Math.floorDiv(days, DAYS_PER_400_YEARS);
+        int dayOfEra = days - era * DAYS_PER_400_YEARS;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        // Months from March
+        int month = (5 * dayOfYear + 2) / 153;
+        int year = yearOfEra + era * 400;
+        // March..December are quarters 0..3 of the year, January and February belong to quarter 0 of the next one
+        return month < 10 ? year * 4 + (month + 2) / 3 : (year + 1) * 4;
+    }
+
+    /**
+     * Function to get the first day of a quarter
+     * @param quarterOrdinal
+     * @return int
+     * Epoch-day
+     */
+    static int firstDayOfQuarter(int quarterOrdinal) {
+        int year = Math.floorDiv(quarterOrdinal, 4);
+        int month = Math.floorMod(quarterOrdinal, 4) * 3 + 1;
+        // Years from March
+        if (month <= 2) {
+            year--;
+        }
+        int era = Math.floorDiv(year, 400);
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * DAYS_PER_400_YEARS + dayOfEra - DAYS_0000_TO_1970;
+    }
+
+    /**
+     * Function to get the last day of a quarter
+     * @param quarterOrdinal
+     * @return int
+     * Epoch-day
+     */
+    static int lastDayOfQuarter(int quarterOrdinal) {
+        return firstDayOfQuarter(quarterOrdinal + 1) - 1;
+    }
+
+    static int getYear(int quarterOrdinal) {
+        return Math.floorDiv(quarterOrdinal, 4);
+    }
+
+    /**
+     * Function to get the quarter of year (1 to 4) of a quarter ordinal
+     * @param quarterOrdinal
+     * @return int
+     */
+    static int getQuarterOfYear(int quarterOrdinal) {
+        return Math.floorMod(quarterOrdinal, 4) + 1;
+    }
+}
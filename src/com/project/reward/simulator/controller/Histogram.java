@@ -0,0 +1,118 @@
+package com.project.reward.simulator.controller;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non negative values (latencies in microseconds, counts...), for percentiles
+ * with a bounded error. Every power of two is split into SUB_BUCKETS linear buckets, so a percentile
+ * is off by less than 1 / SUB_BUCKETS (about 3%).
+ *
+ * Recording doesn't allocate. The buckets are striped by thread, so threads recording at the same
+ * time mostly don't write to the same counters. Stripes are padded, so they don't share cache lines
+ * either.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Up to 2^40, which is more than 12 days in microseconds
+    private static final int MAX_BITS = 40;
+
+    private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final int STRIPES = 4;
+
+    // Longs before every stripe, two cache lines of 64 bytes since lines are often fetched in pairs
+    private static final int PADDING = 16;
+
+    private static final int STRIPE_SIZE = PADDING + BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * STRIPE_SIZE + PADDING);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private static int bucketOf(long value) {
+        value = Math.min(Math.max(value, 0), (1L << MAX_BITS) - 1);
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Buckets of [2^k, 2^(k+1)) have a width of 2^(k - SUB_BUCKET_BITS)
+        int k = 63 - Long.numberOfLeadingZeros(value);
+        int shift = k - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        buckets.incrementAndGet(stripe * STRIPE_SIZE + PADDING + bucketOf(value));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+
+    /**
+     * Function to get a percentile of the recorded values
+     * @param percentile
+     * Between 0 and 100
+     * @return long
+     * 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = buckets.get(stripe * STRIPE_SIZE + PADDING + i);
+                counts[i] += c;
+                n += c;
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                // The bucket's bound can be above any recorded value
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,415 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.data.Contract.ContractAction;
+import com.project.reward.simulator.data.Contract.ContractType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal (write-ahead log) of the accepted partner registrations and contract updates.
+ *
+ * Records are collected in a buffer and written to the file when it's full. They are only forced
+ * to disk by {@link #commit()}, which the handlers call once per command, so loading a csv file
+ * costs one fsync instead of one per row. Concurrent committers share a single fsync.
+ * The handlers commit before the writer publishes the change (see QueryView), so queries, the reward
+ * cube and the query cache never see a change which a crash would lose. If the commit fails, the change
+ * is still published, since it's already applied, and the command reports the error.
+ *
+ * A checkpoint writes a snapshot next to the journal ({@code <journal>.snapshot}) and truncates
+ * the journal, opening a journal restores the snapshot (if any) and replays the records after it.
+ * Every record has a checksum, a torn record at the end of the file (crash during a write) is dropped.
+ */
+public class JournalHandler {
+
+    private static final int MAGIC = 0x52574a4c; // "RWJL"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte REGISTER = 1;
+
+    private static final byte CONTRACT = 2;
+
+    // type, partner id, parent id, checksum
+    private static final int REGISTER_SIZE = 1 + 8 + 8 + 4;
+
+    // type, partner id, contract id, contract type, epoch-day, action, checksum
+    private static final int CONTRACT_SIZE = 1 + 8 + 8 + 1 + 4 + 1 + 4;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Journal size after which a commit also writes a checkpoint
+    private static final long CHECKPOINT_SIZE = 256L << 20;
+
+    private static final JournalHandler instance = new JournalHandler();
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+
+    private final CRC32C crc = new CRC32C();
+
+    // Only one thread forces the file at a time, the others wait and usually find their records forced.
+    // Locks are always taken in the order: writer lock of QueryView, syncLock, this.
+    private final Object syncLock = new Object();
+
+    private Path journalPath;
+
+    private FileChannel channel;
+
+    // Bytes appended to the journal (buffered or written), and bytes known to be on disk
+    private long appendedSize;
+
+    private volatile long durableSize;
+
+    private boolean replaying = false;
+
+    private JournalHandler() {
+    }
+
+    public static JournalHandler getInstance() {
+        return instance;
+    }
+
+    public synchronized boolean isOpen() {
+        return Objects.nonNull(channel);
+    }
+
+    /**
+     * Function to open a journal, restoring its last checkpoint and replaying its records.
+     * Has to be done before registering partners or loading contracts, otherwise those would not be journaled.
+     * @param journalFilePath
+     * @throws Exception
+     */
+    public void openJournal(String journalFilePath) throws Exception {
+        QueryView.lockWriter();
+        try {
+            synchronized (this) {
+                open(journalFilePath);
+            }
+        } finally {
+            QueryView.unlockWriter();
+        }
+    }
+
+    private void open(String journalFilePath) throws Exception {
+        if (isOpen()) {
+            throw new Exception("Journal is already open: " + journalPath);
+        }
+        if (PartnerHandler.getInstance().getPartnerCount() > 0) {
+            throw new Exception("Journal must be opened before registering partners");
+        }
+
+        Path path = new File(journalFilePath).toPath();
+        Path snapshot = getSnapshotPath(path);
+        Path newSnapshot = getNewSnapshotPath(path);
+        FileChannel journal = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (journal.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                journal.write(header, 0);
+                journal.force(false);
+            }
+
+            // A checkpoint crashed after writing its snapshot. The journal is only truncated after the
+            // new snapshot is complete and records are only appended after the checkpoint is done,
+            // so an empty journal means the new snapshot is the one to use.
+            if (Files.exists(newSnapshot)) {
+                if (journal.size() <= HEADER_SIZE) {
+                    Files.move(newSnapshot, snapshot, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    Files.delete(newSnapshot);
+                }
+            }
+            if (Files.exists(snapshot)) {
+                SnapshotHandler.getInstance().restoreSnapshot(snapshot.toString());
+            }
+
+            long size = replay(journal);
+            journal.truncate(size);
+            journal.position(size);
+            journalPath = path;
+            channel = journal;
+            appendedSize = size;
+            durableSize = size;
+        } catch (Exception ex) {
+            journal.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Function to replay all the complete records of the journal
+     * @param journal
+     * @return long
+     * Size of the valid part of the journal
+     * @throws Exception
+     */
+    private long replay(FileChannel journal) throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        journal.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            throw new IOException("Not a journal file: " + journal);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported journal version: " + version);
+        }
+
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        long position = HEADER_SIZE;
+        long valid = HEADER_SIZE;
+        replaying = true;
+        try {
+            in.limit(0);
+            while (true) {
+                if (in.remaining() < CONTRACT_SIZE) {
+                    in.compact();
+                    int read = journal.read(in, position);
+                    in.flip();
+                    if (read > 0) {
+                        position += read;
+                    }
+                    if (!in.hasRemaining()) {
+                        break;
+                    }
+                }
+                int start = in.position();
+                byte type = in.get(start);
+                int recordSize = type == REGISTER ? REGISTER_SIZE : type == CONTRACT ? CONTRACT_SIZE : -1;
+                if (recordSize < 0 || in.remaining() < recordSize || !hasValidChecksum(in, start, recordSize)) {
+                    // Torn or corrupted tail, everything after it was never committed
+                    break;
+                }
+                in.get();
+                if (type == REGISTER) {
+                    PartnerHandler.getInstance().registerPartner(in.getLong(), in.getLong());
+                } else {
+                    long partnerId = in.getLong();
+                    long contractId = in.getLong();
+                    ContractType contractType = ContractType.values()[in.get()];
+                    int epochDay = in.getInt();
+                    ContractAction action = ContractAction.values()[in.get()];
+                    ContractHandler.getInstance().replayContract(partnerId, contractId, contractType, epochDay, action);
+                }
+                in.getInt();
+                valid += recordSize;
+            }
+        } catch (Exception ex) {
+            throw new IOException("Journal replay failed at offset " + valid + ": " + ex.getMessage(), ex);
+        } finally {
+            replaying = false;
+        }
+        return valid;
+    }
+
+    private boolean hasValidChecksum(ByteBuffer in, int start, int recordSize) {
+        crc.reset();
+        ByteBuffer record = in.duplicate();
+        record.position(start).limit(start + recordSize - 4);
+        crc.update(record);
+        return (int) crc.getValue() == in.getInt(start + recordSize - 4);
+    }
+
+    /**
+     * Function to journal a partner registration, which is accepted but not applied yet
+     * @param partnerId
+     * @param parentId
+     * @throws IOException
+     */
+    synchronized void appendRegister(long partnerId, long parentId) throws IOException {
+        if (!isOpen() || replaying) {
+            return;
+        }
+        ensureRemaining(REGISTER_SIZE);
+        int start = buffer.position();
+        buffer.put(REGISTER).putLong(partnerId).putLong(parentId);
+        putChecksum(start);
+    }
+
+    /**
+     * Function to journal a contract update, which is accepted but not applied yet
+     * @param partnerId
+     * @param contractId
+     * @param type
+     * @param epochDay
+     * @param action
+     * @throws IOException
+     */
+    synchronized void appendContract(long partnerId, long contractId, ContractType type, int epochDay,
+                                     ContractAction action) throws IOException {
+        if (!isOpen() || replaying) {
+            return;
+        }
+        ensureRemaining(CONTRACT_SIZE);
+        int start = buffer.position();
+        buffer.put(CONTRACT).putLong(partnerId).putLong(contractId).put((byte) type.ordinal())
+                .putInt(epochDay).put((byte) action.ordinal());
+        putChecksum(start);
+    }
+
+    private void putChecksum(int start) {
+        crc.reset();
+        ByteBuffer record = buffer.duplicate();
+        record.position(start).limit(buffer.position());
+        crc.update(record);
+        buffer.putInt((int) crc.getValue());
+        appendedSize += buffer.position() - start;
+    }
+
+    /**
+     * Function to get the position of the next record, to drop the records appended after it with discard()
+     * @return long
+     */
+    synchronized long mark() {
+        return appendedSize;
+    }
+
+    /**
+     * Function to drop the records appended after a mark, for a change which failed before it was applied.
+     * Has to be called under the writer lock which was held since the mark, so only records of that
+     * change come after it.
+     * @param mark
+     * @throws IOException
+     */
+    void discard(long mark) throws IOException {
+        // Waits for a commit forcing the file, so it can't mark the dropped records durable afterwards
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (!isOpen() || replaying || mark >= appendedSize) {
+                    return;
+                }
+                long buffered = buffer.position();
+                if (appendedSize - mark <= buffered) {
+                    buffer.position((int) (buffered - (appendedSize - mark)));
+                } else {
+                    // Some of the records are already in the file, maybe even forced by a commit
+                    buffer.clear();
+                    channel.truncate(mark);
+                    channel.position(mark);
+                    durableSize = Math.min(durableSize, mark);
+                }
+                appendedSize = mark;
+            }
+        }
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            writeBuffer();
+        }
+    }
+
+    // Writes the buffered records to the file, without forcing them to disk
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Function to force all the journaled records to disk. Committers arriving while another one
+     * is forcing the file wait for it and only force again if their records were not covered.
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        long target;
+        synchronized (this) {
+            if (!isOpen() || replaying) {
+                return;
+            }
+            target = appendedSize;
+        }
+        boolean checkpoint = false;
+        synchronized (syncLock) {
+            if (durableSize >= target) {
+                return;
+            }
+            long size;
+            FileChannel journal;
+            synchronized (this) {
+                writeBuffer();
+                size = appendedSize;
+                journal = channel;
+            }
+            journal.force(false);
+            durableSize = size;
+            checkpoint = size > CHECKPOINT_SIZE;
+        }
+        if (checkpoint) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Function to write a snapshot of the current state next to the journal and start the journal over.
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        // Changes wait for the checkpoint, so the snapshot has exactly the journaled changes
+        QueryView.lockWriter();
+        try {
+            writeCheckpoint();
+        } finally {
+            QueryView.unlockWriter();
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (!isOpen()) {
+                    throw new IOException("No journal is open");
+                }
+                writeBuffer();
+                channel.force(false);
+
+                // Snapshot first, then truncate the journal, then replace the old snapshot.
+                // openJournal() knows what to do if we crash in between.
+                Path newSnapshot = getNewSnapshotPath(journalPath);
+                SnapshotHandler.getInstance().saveSnapshot(newSnapshot.toString());
+                channel.truncate(HEADER_SIZE);
+                channel.position(HEADER_SIZE);
+                channel.force(true);
+                Files.move(newSnapshot, getSnapshotPath(journalPath), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                appendedSize = HEADER_SIZE;
+                durableSize = HEADER_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Function to checkpoint (if a journal is open) after all the data is replaced by a snapshot,
+     * since the journal records don't apply to the restored data
+     * @throws IOException
+     */
+    void onDataRestored() throws IOException {
+        if (isOpen()) {
+            checkpoint();
+        }
+    }
+
+    private static Path getSnapshotPath(Path journal) {
+        return journal.resolveSibling(journal.getFileName() + ".snapshot");
+    }
+
+    private static Path getNewSnapshotPath(Path journal) {
+        return journal.resolveSibling(journal.getFileName() + ".snapshot.new");
+    }
+}
@@ -0,0 +1,147 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.controller.Statistics.RewardLevel;
+
+import java.util.Arrays;
+
+/**
+ * Timeline of the levels of one partner, run-length encoded: every run starts at the quarter in which
+ * the level changes and lasts until the next run. The partner is None before the first run.
+ *
+ * It's built in one sweep over the contracts of the partner's sub-tree: each contract is active from
+ * its first to its last active quarter, so sorting these quarters gives the points at which the number
+ * of active contracts (and maybe the level) changes, instead of counting the contracts of every quarter.
+ */
+final class LevelHistory {
+
+    private static final RewardLevel[] LEVELS = RewardLevel.values();
+
+    // Quarter ordinal at which every run starts, ascending
+    private final int[] runStarts;
+
+    // Level ordinal of every run
+    private final byte[] runLevels;
+
+    private final int numRuns;
+
+    private LevelHistory(int[] runStarts, byte[] runLevels, int numRuns) {
+        this.runStarts = runStarts;
+        this.runLevels = runLevels;
+        this.numRuns = numRuns;
+    }
+
+    /**
+     * Function to build the timeline of a partner in a view
+     * @param view
+     * @param partner
+     * Partner index
+     * @return LevelHistory
+     */
+    static LevelHistory build(QueryView view, int partner) {
+        ContractIndex index = view.getIndex();
+        PartnerLinks links = view.getLinks();
+        int total = 0, visited = 0;
+        for (int p = partner; p >= 0; p = links.getNextInSubtree(partner, p)) {
+            total += index.getContractCount(p);
+            visited++;
+        }
+        int[] firstQuarters = new int[total];
+        int[] endQuarters = new int[total];
+        int numContracts = 0;
+        for (int p = partner; p >= 0; p = links.getNextInSubtree(partner, p)) {
+            numContracts = index.collectActiveQuarters(p, firstQuarters, endQuarters, numContracts);
+        }
+        Metrics.getInstance().recordScan(total, visited);
+
+        // A contract stops being active in the quarter after its last active one
+        for (int i = 0; i < numContracts; i++) {
+            endQuarters[i]++;
+        }
+        Arrays.sort(firstQuarters, 0, numContracts);
+        Arrays.sort(endQuarters, 0, numContracts);
+
+        int[] runStarts = new int[16];
+        byte[] runLevels = new byte[16];
+        int numRuns = 0;
+        int level = RewardLevel.None.ordinal();
+        long active = 0;
+        int i = 0, j = 0;
+        // Every contract ends after it starts, so the ends run out last
+        while (j < numContracts) {
+            int quarter = i < numContracts ? Math.min(firstQuarters[i], endQuarters[j]) : endQuarters[j];
+            while (i < numContracts && firstQuarters[i] == quarter) {
+                active++;
+                i++;
+            }
+            while (j < numContracts && endQuarters[j] == quarter) {
+                active--;
+                j++;
+            }
+            int newLevel = Statistics.getLevel(active).ordinal();
+            if (newLevel != level) {
+                if (numRuns == runStarts.length) {
+                    runStarts = Arrays.copyOf(runStarts, numRuns * 2);
+                    runLevels = Arrays.copyOf(runLevels, numRuns * 2);
+                }
+                runStarts[numRuns] = quarter;
+                runLevels[numRuns] = (byte) newLevel;
+                numRuns++;
+                level = newLevel;
+            }
+        }
+        return new LevelHistory(runStarts, runLevels, numRuns);
+    }
+
+    /**
+     * Function to find the run of a quarter
+     * @param quarter
+     * Quarter ordinal
+     * @return int
+     * -1 if the quarter is before the first run
+     */
+    private int findRun(int quarter) {
+        int lo = 0, hi = numRuns;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runStarts[mid] > quarter) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Function to write the level changes of the whole timeline, one "year quarter level" line per change
+     * @param res
+     */
+    void appendChanges(StringBuilder res) {
+        for (int run = 0; run < numRuns; run++) {
+            appendLine(res, runStarts[run], LEVELS[runLevels[run]]);
+        }
+    }
+
+    /**
+     * Function to write the level in the first quarter of a range and its changes in the range,
+     * one "year quarter level" line each
+     * @param res
+     * @param fromQuarter
+     * Quarter ordinal
+     * @param toQuarter
+     * Quarter ordinal, inclusive
+     */
+    void appendChanges(StringBuilder res, int fromQuarter, int toQuarter) {
+        int run = findRun(fromQuarter);
+        appendLine(res, fromQuarter, run < 0 ? RewardLevel.None : LEVELS[runLevels[run]]);
+        for (run++; run < numRuns && runStarts[run] <= toQuarter; run++) {
+            appendLine(res, runStarts[run], LEVELS[runLevels[run]]);
+        }
+    }
+
+    private static void appendLine(StringBuilder res, int quarter, RewardLevel level) {
+        res.append(EpochDays.getYear(quarter)).append(' ')
+                .append(EpochDays.getQuarterOfYear(quarter)).append(' ')
+                .append(level.name()).append('\n');
+    }
+}
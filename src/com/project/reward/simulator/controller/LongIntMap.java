@@ -0,0 +1,101 @@
+package com.project.reward.simulator.controller;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to non-negative int values, without boxing.
+ */
+class LongIntMap {
+
+    private static final int EMPTY = -1;
+
+    private long[] keys;
+
+    private int[] values;
+
+    private int size = 0;
+
+    LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+    }
+
+    private LongIntMap(long[] keys, int[] values, int size) {
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Function to get a read-only map with the current keys, without copying them.
+     * Keys are never moved, only a resize copies them to new arrays, so the keys of the snapshot always
+     * have their value. But keys which are put afterwards can be seen half written by another thread:
+     * a value found for a key which may not be in the snapshot has to be checked by the caller.
+     * @return LongIntMap
+     */
+    LongIntMap snapshot() {
+        return new LongIntMap(keys, values, size);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Function to get the value of a key
+     * @param key
+     * @return int
+     * -1 if the key is not in the map
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == EMPTY || keys[i] == key) {
+                return values[i];
+            }
+        }
+    }
+
+    /**
+     * Function to add or replace the value of a key
+     * @param key
+     * @param value
+     * Must not be negative
+     */
+    void put(long key, int value) {
+        if (2 * (size + 1) > keys.length) {
+            resize();
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == EMPTY) {
+            size++;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
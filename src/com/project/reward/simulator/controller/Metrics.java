@@ -0,0 +1,388 @@
+package com.project.reward.simulator.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the hot paths: contract loads (rows, bytes, time and rejected rows by reason), the
+ * queries of Statistics (latency per query, contracts scanned and partners visited per scan) and
+ * the continuous ingestion (batches, time waited for room and latency until rows are queryable).
+ *
+ * Recording only updates LongAdders and Histograms, so it doesn't lock or allocate. Everything is
+ * cumulative since the start of the process; the metrics can be dumped as text, JSON or in the
+ * Prometheus text format, and exported to a file periodically.
+ */
+public class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    public enum Query {
+        LEVEL, REWARDS, ALL_REWARDS, ALL_PARTNERS_REWARDS, LEVEL_HISTORY, WHAT_IF
+    }
+
+    public enum RejectReason {
+        // Wrong number of fields, or a field which can't be parsed
+        MALFORMED,
+        UNKNOWN_PARTNER,
+        DUPLICATE_CONTRACT,
+        END_WITHOUT_BEGIN
+    }
+
+    public enum Format {
+        JSON, PROMETHEUS
+    }
+
+    private final LongAdder loads = new LongAdder();
+
+    private final LongAdder loadedRows = new LongAdder();
+
+    private final LongAdder loadedBytes = new LongAdder();
+
+    private final LongAdder loadNanos = new LongAdder();
+
+    private final LongAdder[] rejectedRows = new LongAdder[RejectReason.values().length];
+
+    // Latency in microseconds by query
+    private final Histogram[] latencies = new Histogram[Query.values().length];
+
+    // Per query which scans the contract index, not answered by the cache or the reward cube
+    private final Histogram contractsScanned = new Histogram();
+
+    private final Histogram partnersVisited = new Histogram();
+
+    private final LongAdder ingestBatches = new LongAdder();
+
+    private final LongAdder ingestedRows = new LongAdder();
+
+    private final LongAdder ingestRejectedRows = new LongAdder();
+
+    // Time the ingestion sources waited for the applier
+    private final LongAdder backpressureNanos = new LongAdder();
+
+    // Microseconds from reading a row to it being queryable
+    private final Histogram ingestLatency = new Histogram();
+
+    private ScheduledExecutorService exporter;
+
+    private ScheduledFuture<?> export;
+
+    private volatile String exportError;
+
+    private Metrics() {
+        for (int i = 0; i < rejectedRows.length; i++) {
+            rejectedRows[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Function to record a finished (or failed) load of a csv file
+     * @param rows
+     * Rows applied to the contracts
+     * @param bytes
+     * Bytes of the file which were read, up to the failing row for a failed load
+     * @param nanos
+     * Duration of the load
+     */
+    void onLoad(long rows, long bytes, long nanos) {
+        loads.increment();
+        loadedRows.add(rows);
+        loadedBytes.add(bytes);
+        loadNanos.add(nanos);
+    }
+
+    void onRejectedRow(RejectReason reason) {
+        rejectedRows[reason.ordinal()].increment();
+    }
+
+    /**
+     * Function to record the latency of a query
+     * @param query
+     * @param startNanos
+     * System.nanoTime() at the start of the query
+     */
+    void recordQuery(Query query, long startNanos) {
+        latencies[query.ordinal()].record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Function to record a query which scanned the contract index
+     * @param scanned
+     * Contracts looked at
+     * @param visited
+     * Partners whose contracts were looked at
+     */
+    void recordScan(long scanned, long visited) {
+        contractsScanned.record(scanned);
+        partnersVisited.record(visited);
+    }
+
+    /**
+     * Function to record an applied ingestion batch
+     * @param rows
+     * Rows applied to the contracts
+     * @param rejected
+     * Invalid rows
+     */
+    void onIngestBatch(long rows, long rejected) {
+        ingestBatches.increment();
+        ingestedRows.add(rows);
+        ingestRejectedRows.add(rejected);
+    }
+
+    void onIngestBackpressure(long nanos) {
+        backpressureNanos.add(nanos);
+    }
+
+    /**
+     * Function to record the time from reading a row to it being queryable
+     * @param nanos
+     */
+    void recordIngestLatency(long nanos) {
+        ingestLatency.record(nanos / 1000);
+    }
+
+    public Histogram getIngestLatency() {
+        return ingestLatency;
+    }
+
+    public long getLoadedRows() {
+        return loadedRows.sum();
+    }
+
+    public long getRejectedRows(RejectReason reason) {
+        return rejectedRows[reason.ordinal()].sum();
+    }
+
+    public Histogram getLatency(Query query) {
+        return latencies[query.ordinal()];
+    }
+
+    private double getLoadSeconds() {
+        return loadNanos.sum() / 1e9;
+    }
+
+    private double getRowsPerSecond() {
+        double seconds = getLoadSeconds();
+        return seconds > 0 ? loadedRows.sum() / seconds : 0;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Function to get the metrics as lines of readable text
+     * @return List
+     */
+    public List<String> toLines() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "Loads: %d files, %d rows, %d bytes in %s s (%s rows/s)",
+                loads.sum(), loadedRows.sum(), loadedBytes.sum(), format(getLoadSeconds()), format(getRowsPerSecond())));
+        StringBuilder rejected = new StringBuilder("Rejected rows:");
+        for (RejectReason reason : RejectReason.values()) {
+            rejected.append(' ').append(reason).append('=').append(getRejectedRows(reason));
+        }
+        lines.add(rejected.toString());
+        for (Query query : Query.values()) {
+            Histogram histogram = getLatency(query);
+            lines.add(String.format("%s: %d queries, mean %d us, p50 %d us, p99 %d us, p99.9 %d us, max %d us",
+                    query, histogram.getCount(), histogram.getMean(), histogram.getPercentile(50),
+                    histogram.getPercentile(99), histogram.getPercentile(99.9), histogram.getMax()));
+        }
+        lines.add(String.format("Contracts scanned per query: mean %d, p50 %d, p99 %d, max %d",
+                contractsScanned.getMean(), contractsScanned.getPercentile(50),
+                contractsScanned.getPercentile(99), contractsScanned.getMax()));
+        lines.add(String.format("Partners visited per query: mean %d, p50 %d, p99 %d, max %d",
+                partnersVisited.getMean(), partnersVisited.getPercentile(50),
+                partnersVisited.getPercentile(99), partnersVisited.getMax()));
+        lines.add(String.format(Locale.ROOT, "Ingestion: %d batches, %d rows, %d rejected, waited %s s for room",
+                ingestBatches.sum(), ingestedRows.sum(), ingestRejectedRows.sum(),
+                format(backpressureNanos.sum() / 1e9)));
+        lines.add(String.format("Read to queryable: mean %d us, p50 %d us, p99 %d us, p99.9 %d us, max %d us",
+                ingestLatency.getMean(), ingestLatency.getPercentile(50), ingestLatency.getPercentile(99),
+                ingestLatency.getPercentile(99.9), ingestLatency.getMax()));
+        QueryCache cache = QueryCache.getInstance();
+        lines.add(String.format("Query cache: %d entries, %d hits, %d misses, %d evictions, %d invalidations",
+                cache.size(), cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getInvalidations()));
+        String error = exportError;
+        if (Objects.nonNull(error)) {
+            lines.add("Last export failed: " + error);
+        }
+        return lines;
+    }
+
+    private static void appendJson(StringBuilder json, Histogram histogram, String unit) {
+        json.append("{\"count\":").append(histogram.getCount())
+                .append(",\"mean").append(unit).append("\":").append(histogram.getMean())
+                .append(",\"p50").append(unit).append("\":").append(histogram.getPercentile(50))
+                .append(",\"p99").append(unit).append("\":").append(histogram.getPercentile(99))
+                .append(",\"p999").append(unit).append("\":").append(histogram.getPercentile(99.9))
+                .append(",\"max").append(unit).append("\":").append(histogram.getMax())
+                .append('}');
+    }
+
+    /**
+     * Function to get the metrics as a JSON object
+     * @return String
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"load\":{")
+                .append("\"files\":").append(loads.sum())
+                .append(",\"rows\":").append(loadedRows.sum())
+                .append(",\"bytes\":").append(loadedBytes.sum())
+                .append(",\"seconds\":").append(format(getLoadSeconds()))
+                .append(",\"rowsPerSecond\":").append(format(getRowsPerSecond()))
+                .append(",\"rejectedRows\":{");
+        for (RejectReason reason : RejectReason.values()) {
+            json.append(reason.ordinal() == 0 ? "" : ",")
+                    .append('"').append(reason).append("\":").append(getRejectedRows(reason));
+        }
+        json.append("}},\"queries\":{");
+        for (Query query : Query.values()) {
+            json.append(query.ordinal() == 0 ? "" : ",").append('"').append(query).append("\":");
+            appendJson(json, getLatency(query), "Micros");
+        }
+        json.append("},\"contractsScanned\":");
+        appendJson(json, contractsScanned, "");
+        json.append(",\"partnersVisited\":");
+        appendJson(json, partnersVisited, "");
+        json.append(",\"ingestion\":{")
+                .append("\"batches\":").append(ingestBatches.sum())
+                .append(",\"rows\":").append(ingestedRows.sum())
+                .append(",\"rejectedRows\":").append(ingestRejectedRows.sum())
+                .append(",\"backpressureSeconds\":").append(format(backpressureNanos.sum() / 1e9))
+                .append(",\"latency\":");
+        appendJson(json, ingestLatency, "Micros");
+        json.append('}');
+        QueryCache cache = QueryCache.getInstance();
+        json.append(",\"cache\":{")
+                .append("\"entries\":").append(cache.size())
+                .append(",\"hits\":").append(cache.getHits())
+                .append(",\"misses\":").append(cache.getMisses())
+                .append(",\"evictions\":").append(cache.getEvictions())
+                .append(",\"invalidations\":").append(cache.getInvalidations())
+                .append("}}");
+        return json.toString();
+    }
+
+    private static void appendPrometheus(StringBuilder text, String name, String labels, Histogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        String[] quantiles = {"0.5", "0.99", "0.999"};
+        double[] percentiles = {50, 99, 99.9};
+        for (int i = 0; i < quantiles.length; i++) {
+            text.append(name).append('{').append(labels).append(separator)
+                    .append("quantile=\"").append(quantiles[i]).append("\"} ")
+                    .append(histogram.getPercentile(percentiles[i])).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        text.append(name).append("_sum").append(braces).append(' ').append(histogram.getTotal()).append('\n');
+        text.append(name).append("_count").append(braces).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static void appendCounter(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Function to get the metrics in the Prometheus text format
+     * @return String
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        appendCounter(text, "reward_load_files_total", loads.sum());
+        appendCounter(text, "reward_load_rows_total", loadedRows.sum());
+        appendCounter(text, "reward_load_bytes_total", loadedBytes.sum());
+        text.append("# TYPE reward_load_seconds_total counter\nreward_load_seconds_total ")
+                .append(format(getLoadSeconds())).append('\n');
+        text.append("# TYPE reward_load_rejected_rows_total counter\n");
+        for (RejectReason reason : RejectReason.values()) {
+            text.append("reward_load_rejected_rows_total{reason=\"").append(reason).append("\"} ")
+                    .append(getRejectedRows(reason)).append('\n');
+        }
+        text.append("# TYPE reward_query_latency_microseconds summary\n");
+        for (Query query : Query.values()) {
+            appendPrometheus(text, "reward_query_latency_microseconds", "query=\"" + query + "\"", getLatency(query));
+        }
+        text.append("# TYPE reward_query_contracts_scanned summary\n");
+        appendPrometheus(text, "reward_query_contracts_scanned", "", contractsScanned);
+        text.append("# TYPE reward_query_partners_visited summary\n");
+        appendPrometheus(text, "reward_query_partners_visited", "", partnersVisited);
+        appendCounter(text, "reward_ingest_batches_total", ingestBatches.sum());
+        appendCounter(text, "reward_ingest_rows_total", ingestedRows.sum());
+        appendCounter(text, "reward_ingest_rejected_rows_total", ingestRejectedRows.sum());
+        text.append("# TYPE reward_ingest_backpressure_seconds_total counter\nreward_ingest_backpressure_seconds_total ")
+                .append(format(backpressureNanos.sum() / 1e9)).append('\n');
+        text.append("# TYPE reward_ingest_latency_microseconds summary\n");
+        appendPrometheus(text, "reward_ingest_latency_microseconds", "", ingestLatency);
+        QueryCache cache = QueryCache.getInstance();
+        text.append("# TYPE reward_cache_entries gauge\nreward_cache_entries ").append(cache.size()).append('\n');
+        appendCounter(text, "reward_cache_hits_total", cache.getHits());
+        appendCounter(text, "reward_cache_misses_total", cache.getMisses());
+        appendCounter(text, "reward_cache_evictions_total", cache.getEvictions());
+        appendCounter(text, "reward_cache_invalidations_total", cache.getInvalidations());
+        return text.toString();
+    }
+
+    /**
+     * Function to write the metrics to a file, which is replaced at once
+     * @param filePath
+     * @param format
+     * @throws IOException
+     */
+    public void export(String filePath, Format format) throws IOException {
+        String content = format.equals(Format.JSON) ? toJson() + "\n" : toPrometheus();
+        AtomicFile.write(filePath, out -> out.write(content));
+    }
+
+    /**
+     * Function to export the metrics to a file periodically, replacing an earlier periodic export
+     * @param filePath
+     * @param format
+     * @param intervalSeconds
+     * 0 to stop exporting
+     * @throws IOException
+     */
+    public synchronized void exportPeriodically(String filePath, Format format, long intervalSeconds)
+            throws IOException {
+        if (Objects.nonNull(export)) {
+            export.cancel(false);
+            export = null;
+        }
+        exportError = null;
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        // The first export is done right away, so a wrong path is reported to the caller
+        export(filePath, format);
+        if (Objects.isNull(exporter)) {
+            exporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-export");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        export = exporter.scheduleWithFixedDelay(() -> {
+            try {
+                export(filePath, format);
+                exportError = null;
+            } catch (IOException ex) {
+                exportError = ex.getMessage();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
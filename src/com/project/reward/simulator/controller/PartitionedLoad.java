@@ -0,0 +1,604 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.data.Contract.ContractAction;
+import com.project.reward.simulator.data.Contract.ContractType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load of a contract csv file in which every partner network (a root partner with all its descendants)
+ * is applied by its own worker thread. Rows of different networks never touch the same partner or
+ * contract, so the workers validate and apply them without locking each other:
+ * - the file is parsed in chunks and every row is routed to the worker of its partner's network
+ * - every worker validates its rows in file order, like addOrUpdateContract, against the store and the
+ *   contracts it added itself; contract ids added by two networks are found afterwards, per id shard
+ * - the rows before the first invalid one are applied: every worker fills a reserved range of slots,
+ *   its partners' index entries and its end days, then the id shards are filled in parallel
+ * - the first invalid row, and rows which the fast parser can't handle, go through the normal row
+ *   handler, so a load stops at the same row and with the same error as a sequential load
+ *
+ * A network is always applied by the same worker. The reward cube and the query cache are not safe
+ * for the workers, the writer updates them for all the rows of a round: for the ended contracts before
+ * the workers apply it, while the old end days are still there, and for the new ones afterwards.
+ */
+final class PartitionedLoad {
+
+    // Worker threads, created on the first partitioned load
+    private static ExecutorService[] workers;
+
+    // Rows which are not in the window
+    private static final long NO_ROW = Long.MAX_VALUE;
+
+    private final ContractHandler contracts;
+
+    private final ContractStore store;
+
+    private final ContractIndex index;
+
+    private final ContractCsvReader.RowHandler rowHandler;
+
+    private final ExecutorService[] threads;
+
+    private final int numWorkers;
+
+    private final int partnerCount;
+
+    private final long[] partnerIds;
+
+    // Partner index by partner id
+    private final LongIntMap partnerIndexes;
+
+    // Worker of every partner's network, by partner index
+    private final int[] workerOfPartner;
+
+    // Growable list of ints
+    private static final class IntList {
+
+        private int[] values = new int[16];
+
+        private int size = 0;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // Growable list of longs
+    private static final class LongList {
+
+        private long[] values = new long[16];
+
+        private int size = 0;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        // Number of values lower than the given one, the values must be sorted
+        private int countBelow(long value) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] < value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    // Parsed chunk with its rows routed to the workers
+    private static final class RoutedChunk {
+
+        private final ContractCsvReader.Chunk chunk;
+
+        // Partner index by row, -1 for rows which go through the row handler
+        private final int[] partners;
+
+        private final IntList[] rowsByWorker;
+
+        private final IntList handlerRows = new IntList();
+
+        private RoutedChunk(ContractCsvReader.Chunk chunk, int numWorkers) {
+            this.chunk = chunk;
+            this.partners = new int[chunk.size()];
+            this.rowsByWorker = new IntList[numWorkers];
+            for (int w = 0; w < numWorkers; w++) {
+                rowsByWorker[w] = new IntList();
+            }
+        }
+    }
+
+    // Rows of a worker in a window, and what it validated in the current round
+    private static final class WorkerRows {
+
+        // Rows of the worker, as (chunk << 32 | row) keys in file order
+        private long[] keys;
+
+        // Next row to validate
+        private int cursor = 0;
+
+        // Rows validated in this round are [cursor, validatedEnd)
+        private int validatedEnd;
+
+        // First invalid row of this round
+        private long errorKey;
+
+        // By validated row: number of the new contract of a BEGIN row (counted from 0 in every round),
+        // the slot of an END row, or -(number + 1) for an END of a contract added in this round
+        private int[] targets;
+
+        // Keys of the BEGIN rows of this round
+        private LongList beginKeys;
+
+        // New contract ids of this round by id shard, with their keys and numbers
+        private LongList[] shardIds;
+
+        private LongList[] shardKeys;
+
+        private IntList[] shardNumbers;
+
+        // Chunks of end days with an END of an older contract
+        private IntList endedChunks;
+
+        private IntList unsortedPartners;
+
+        // First slot of the new contracts of this round
+        private int base;
+    }
+
+    PartitionedLoad(ContractHandler contracts) {
+        this.contracts = contracts;
+        this.store = contracts.getStore();
+        this.index = contracts.getIndex();
+        this.rowHandler = contracts.getRowHandler();
+        this.threads = getWorkers();
+        this.numWorkers = threads.length;
+
+        PartnerHandler partners = PartnerHandler.getInstance();
+        partnerCount = partners.getPartnerCount();
+        partnerIds = partners.getPartnerIds();
+        int[] parentIndexes = partners.getParentIndexes();
+        partnerIndexes = new LongIntMap(partnerCount);
+        workerOfPartner = new int[partnerCount];
+        // Parents always have a lower index than their children
+        int[] roots = new int[partnerCount];
+        for (int p = 0; p < partnerCount; p++) {
+            partnerIndexes.put(partnerIds[p], p);
+            roots[p] = parentIndexes[p] < 0 ? p : roots[parentIndexes[p]];
+            workerOfPartner[p] = Math.floorMod(Long.hashCode(roots[p] * 0x9E3779B97F4A7C15L), numWorkers);
+        }
+    }
+
+    private static synchronized ExecutorService[] getWorkers() {
+        if (Objects.isNull(workers)) {
+            int count = Math.max(1, Runtime.getRuntime().availableProcessors());
+            workers = new ExecutorService[count];
+            for (int w = 0; w < count; w++) {
+                String name = "partition-worker-" + w;
+                workers[w] = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        return workers;
+    }
+
+    private interface WorkerTask<T> {
+        T run(int worker) throws IOException;
+    }
+
+    /**
+     * Function to run a task on every worker thread and wait for all of them
+     * @param task
+     * @return List
+     * Results by worker
+     * @throws IOException
+     */
+    private <T> List<T> onWorkers(WorkerTask<T> task) throws IOException {
+        List<Future<T>> futures = new ArrayList<>(numWorkers);
+        for (int w = 0; w < numWorkers; w++) {
+            int worker = w;
+            futures.add(threads[w].submit(() -> task.run(worker)));
+        }
+        List<T> results = new ArrayList<>(numWorkers);
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Function to load a csv file, must be called by the writer
+     * @param csv
+     * @throws IOException
+     */
+    void load(File csv) throws IOException {
+        int windowSize = Math.max(2, 2 * numWorkers);
+        try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+            long[] offsets = ContractCsvReader.splitChunks(channel, ContractHandler.PARALLEL_CHUNK_SIZE);
+            int chunks = offsets.length - 1;
+            for (int first = 0; first < chunks; first += windowSize) {
+                int count = Math.min(windowSize, chunks - first);
+                int firstChunk = first;
+                // Every worker parses and routes some of the chunks
+                List<RoutedChunk[]> parsed = onWorkers(worker -> {
+                    RoutedChunk[] routed = new RoutedChunk[count];
+                    for (int c = worker; c < count; c += numWorkers) {
+                        int chunk = firstChunk + c;
+                        routed[c] = route(new ContractCsvReader().readChunk(
+                                channel, offsets[chunk], offsets[chunk + 1], chunk == 0));
+                    }
+                    return routed;
+                });
+                RoutedChunk[] window = new RoutedChunk[count];
+                for (int c = 0; c < count; c++) {
+                    window[c] = parsed.get(c % numWorkers)[c];
+                }
+                loadWindow(window);
+            }
+        }
+    }
+
+    private RoutedChunk route(ContractCsvReader.Chunk chunk) {
+        RoutedChunk routed = new RoutedChunk(chunk, numWorkers);
+        for (int row = 0; row < chunk.size(); row++) {
+            int partner = chunk.isWellFormed(row) ? partnerIndexes.get(chunk.getPartnerId(row)) : -1;
+            routed.partners[row] = partner;
+            if (partner < 0) {
+                routed.handlerRows.add(row);
+            } else {
+                routed.rowsByWorker[workerOfPartner[partner]].add(row);
+            }
+        }
+        return routed;
+    }
+
+    private static long key(int chunk, int row) {
+        return ((long) chunk << 32) | row;
+    }
+
+    /**
+     * Function to load the rows of some chunks, in rounds which end at a row which has to go through
+     * the row handler
+     * @param window
+     * @throws IOException
+     */
+    private void loadWindow(RoutedChunk[] window) throws IOException {
+        LongList handlerKeys = new LongList();
+        for (int c = 0; c < window.length; c++) {
+            IntList rows = window[c].handlerRows;
+            for (int i = 0; i < rows.size; i++) {
+                handlerKeys.add(key(c, rows.values[i]));
+            }
+        }
+        List<WorkerRows> workerRows = onWorkers(worker -> {
+            WorkerRows rows = new WorkerRows();
+            int total = 0;
+            for (RoutedChunk routed : window) {
+                total += routed.rowsByWorker[worker].size;
+            }
+            rows.keys = new long[total];
+            rows.targets = new int[total];
+            int i = 0;
+            for (int c = 0; c < window.length; c++) {
+                IntList chunkRows = window[c].rowsByWorker[worker];
+                for (int j = 0; j < chunkRows.size; j++) {
+                    rows.keys[i++] = key(c, chunkRows.values[j]);
+                }
+            }
+            return rows;
+        });
+
+        int nextHandlerRow = 0;
+        while (true) {
+            long limit = nextHandlerRow < handlerKeys.size ? handlerKeys.values[nextHandlerRow] : NO_ROW;
+            onWorkers(worker -> {
+                validate(window, workerRows.get(worker), limit);
+                return null;
+            });
+            long end = limit;
+            for (WorkerRows rows : workerRows) {
+                end = Math.min(end, rows.errorKey);
+            }
+            if (numWorkers > 1) {
+                end = findDuplicates(workerRows, end);
+            }
+            apply(window, workerRows, end);
+            if (end == NO_ROW) {
+                return;
+            }
+            if (end == limit) {
+                nextHandlerRow++;
+            }
+            // Fails with the same error as a sequential load, or applies a row the fast path couldn't
+            window[(int) (end >>> 32)].chunk.replayRow((int) end, rowHandler);
+            for (WorkerRows rows : workerRows) {
+                while (rows.cursor < rows.keys.length && rows.keys[rows.cursor] <= end) {
+                    rows.cursor++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Function to validate the rows of a worker from its cursor, until the limit or its first invalid row
+     * @param window
+     * @param rows
+     * @param limit
+     */
+    private void validate(RoutedChunk[] window, WorkerRows rows, long limit) {
+        rows.errorKey = NO_ROW;
+        rows.beginKeys = new LongList();
+        rows.shardIds = new LongList[ContractStore.ID_SHARDS];
+        rows.shardKeys = new LongList[ContractStore.ID_SHARDS];
+        rows.shardNumbers = new IntList[ContractStore.ID_SHARDS];
+        for (int s = 0; s < ContractStore.ID_SHARDS; s++) {
+            rows.shardIds[s] = new LongList();
+            rows.shardKeys[s] = new LongList();
+            rows.shardNumbers[s] = new IntList();
+        }
+        rows.endedChunks = new IntList();
+        rows.unsortedPartners = new IntList();
+
+        // Contracts added in this round by number, and the older contracts ended in this round
+        LongIntMap added = new LongIntMap(1024);
+        IntList addedPartners = new IntList();
+        IntList addedTypes = new IntList();
+        IntList addedEnded = new IntList();
+        LongIntMap endedSlots = new LongIntMap(1024);
+        boolean[] chunkListed = new boolean[ContractStore.getChunk(Math.max(store.size() - 1, 0)) + 1];
+
+        int i = rows.cursor;
+        for (; i < rows.keys.length && rows.keys[i] < limit; i++) {
+            long key = rows.keys[i];
+            RoutedChunk routed = window[(int) (key >>> 32)];
+            int row = (int) key;
+            int partner = routed.partners[row];
+            long contractId = routed.chunk.getContractId(row);
+            ContractType type = routed.chunk.getType(row);
+            int slot = store.find(contractId);
+            int number = added.get(contractId);
+            if (routed.chunk.getAction(row).equals(ContractAction.BEGIN)) {
+                if (slot >= 0 || number >= 0) {
+                    break;
+                }
+                number = addedPartners.size;
+                added.put(contractId, number);
+                addedPartners.add(partner);
+                addedTypes.add(type.ordinal());
+                addedEnded.add(0);
+                int shard = ContractStore.idShard(contractId);
+                rows.shardIds[shard].add(contractId);
+                rows.shardKeys[shard].add(key);
+                rows.shardNumbers[shard].add(number);
+                rows.beginKeys.add(key);
+                rows.targets[i] = number;
+            } else if (slot >= 0) {
+                // Same checks as addOrUpdateContract
+                if (store.getPartner(slot) != partner || !store.getType(slot).equals(type)
+                        || store.getEndDay(slot) != ContractStore.NO_END || endedSlots.get(slot) >= 0) {
+                    break;
+                }
+                endedSlots.put(slot, 0);
+                int chunk = ContractStore.getChunk(slot);
+                if (!chunkListed[chunk]) {
+                    chunkListed[chunk] = true;
+                    rows.endedChunks.add(chunk);
+                }
+                rows.targets[i] = slot;
+            } else {
+                if (number < 0 || addedPartners.values[number] != partner
+                        || addedTypes.values[number] != type.ordinal() || addedEnded.values[number] != 0) {
+                    break;
+                }
+                addedEnded.values[number] = 1;
+                rows.targets[i] = -(number + 1);
+            }
+        }
+        rows.validatedEnd = i;
+        if (i < rows.keys.length && rows.keys[i] < limit) {
+            rows.errorKey = rows.keys[i];
+        }
+    }
+
+    /**
+     * Function to find the first row which adds a contract id that another network added before it
+     * @param workerRows
+     * @param end
+     * Rows from here on are not applied
+     * @return long
+     * The lower of end and the first such row
+     * @throws IOException
+     */
+    private long findDuplicates(List<WorkerRows> workerRows, long end) throws IOException {
+        List<Long> firsts = onWorkers(worker -> {
+            long first = end;
+            for (int shard = worker; shard < ContractStore.ID_SHARDS; shard += numWorkers) {
+                // Smallest key which added every id so far, workers aren't visited in key order
+                LongIntMap seen = new LongIntMap(1024);
+                LongList seenKeys = new LongList();
+                for (int w = 0; w < numWorkers; w++) {
+                    WorkerRows rows = workerRows.get(w);
+                    LongList ids = rows.shardIds[shard];
+                    LongList keys = rows.shardKeys[shard];
+                    for (int i = 0; i < ids.size && keys.values[i] < first; i++) {
+                        int other = seen.get(ids.values[i]);
+                        if (other >= 0) {
+                            // The later of the two rows is the duplicate
+                            long seenMin = seenKeys.values[other];
+                            first = Math.min(first, Math.max(keys.values[i], seenMin));
+                            seenKeys.values[other] = Math.min(seenMin, keys.values[i]);
+                        } else {
+                            seen.put(ids.values[i], seenKeys.size);
+                            seenKeys.add(keys.values[i]);
+                        }
+                    }
+                }
+            }
+            return first;
+        });
+        long first = end;
+        for (long key : firsts) {
+            first = Math.min(first, key);
+        }
+        return first;
+    }
+
+    /**
+     * Function to apply the validated rows before the given row
+     * @param window
+     * @param workerRows
+     * @param end
+     * @throws IOException
+     */
+    private void apply(RoutedChunk[] window, List<WorkerRows> workerRows, long end) throws IOException {
+        int added = 0;
+        long applied = 0;
+        for (WorkerRows rows : workerRows) {
+            added += rows.beginKeys.countBelow(end);
+            // Applying only ends validated rows, so rows of a round are never applied twice
+            rows.validatedEnd = rows.cursor + countBelow(rows.keys, rows.cursor, rows.validatedEnd, end);
+            applied += rows.validatedEnd - rows.cursor;
+        }
+        if (applied == 0) {
+            return;
+        }
+        // Journaled before the store grows, since writing the journal can fail half way and applying can't.
+        // The records of a failed round must not be committed later, so they are dropped.
+        JournalHandler journal = JournalHandler.getInstance();
+        if (journal.isOpen()) {
+            long mark = journal.mark();
+            try {
+                for (WorkerRows rows : workerRows) {
+                    for (int i = rows.cursor; i < rows.validatedEnd; i++) {
+                        long key = rows.keys[i];
+                        RoutedChunk routed = window[(int) (key >>> 32)];
+                        int row = (int) key;
+                        journal.appendContract(partnerIds[routed.partners[row]], routed.chunk.getContractId(row),
+                                routed.chunk.getType(row), routed.chunk.getEpochDay(row), routed.chunk.getAction(row));
+                    }
+                }
+            } catch (IOException ex) {
+                try {
+                    journal.discard(mark);
+                } catch (IOException discardEx) {
+                    ex.addSuppressed(discardEx);
+                }
+                throw ex;
+            }
+        }
+
+        int base = added > 0 ? store.reserve(added) : store.size();
+        int firstSlot = base;
+        for (WorkerRows rows : workerRows) {
+            rows.base = base;
+            base += rows.beginKeys.countBelow(end);
+            for (int i = 0; i < rows.endedChunks.size; i++) {
+                store.unshareEndDays(rows.endedChunks.values[i]);
+            }
+        }
+        index.prepareConcurrentAdd(partnerCount);
+        // Contracts added in this round are counted with their final end day below
+        for (WorkerRows rows : workerRows) {
+            for (int i = rows.cursor; i < rows.validatedEnd; i++) {
+                long key = rows.keys[i];
+                RoutedChunk routed = window[(int) (key >>> 32)];
+                int row = (int) key;
+                if (!routed.chunk.getAction(row).equals(ContractAction.BEGIN) && rows.targets[i] >= 0) {
+                    Statistics.onContractEnded(rows.targets[i], routed.chunk.getEpochDay(row));
+                }
+            }
+        }
+
+        onWorkers(worker -> {
+            WorkerRows rows = workerRows.get(worker);
+            for (int i = rows.cursor; i < rows.validatedEnd; i++) {
+                long key = rows.keys[i];
+                RoutedChunk routed = window[(int) (key >>> 32)];
+                int row = (int) key;
+                int target = rows.targets[i];
+                if (routed.chunk.getAction(row).equals(ContractAction.BEGIN)) {
+                    int slot = rows.base + target;
+                    int partner = routed.partners[row];
+                    store.set(slot, routed.chunk.getContractId(row), partner, routed.chunk.getType(row),
+                            routed.chunk.getEpochDay(row));
+                    if (index.addToPartner(partner, slot)) {
+                        rows.unsortedPartners.add(partner);
+                    }
+                } else {
+                    store.setEndDay(target >= 0 ? target : rows.base - target - 1, routed.chunk.getEpochDay(row));
+                }
+            }
+            return null;
+        });
+        onWorkers(worker -> {
+            for (int shard = worker; shard < ContractStore.ID_SHARDS; shard += numWorkers) {
+                for (WorkerRows rows : workerRows) {
+                    LongList ids = rows.shardIds[shard];
+                    for (int i = 0; i < ids.size && rows.shardKeys[shard].values[i] < end; i++) {
+                        store.putId(ids.values[i], rows.base + rows.shardNumbers[shard].values[i]);
+                    }
+                }
+            }
+            return null;
+        });
+        Statistics.onContractsAdded(firstSlot, firstSlot + added);
+        for (WorkerRows rows : workerRows) {
+            for (int i = 0; i < rows.unsortedPartners.size; i++) {
+                index.markUnsorted(rows.unsortedPartners.values[i]);
+            }
+            rows.cursor = rows.validatedEnd;
+        }
+        contracts.addAppliedRows(applied);
+    }
+
+    // Number of keys in [from, to) lower than the given one, the keys are sorted
+    private static int countBelow(long[] keys, int from, int to, long key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - from;
+    }
+}
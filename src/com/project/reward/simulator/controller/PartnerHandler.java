@@ -2,7 +2,14 @@ package com.project.reward.simulator.controller;
 
 import com.project.reward.simulator.data.Partner;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Objects;
 
 public class PartnerHandler {
 
@@ -10,6 +17,23 @@ public class PartnerHandler {
 
     private HashMap<Long, Partner> registeredPartners = new HashMap<>();
 
+    private ArrayList<Partner> partnersByIndex = new ArrayList<>();
+
+    // Partner columns by partner index, only appended to so they are shared with the query views
+    private long[] partnerIds = new long[1024];
+
+    private int[] parentIndexes = new int[1024];
+
+    // Child links by partner index, -1 for none, also shared with the query views (see PartnerLinks)
+    private int[] firstChildren = newLinks(1024);
+
+    private int[] nextSiblings = newLinks(1024);
+
+    // Only used by the writer, to append a child
+    private int[] lastChildren = newLinks(1024);
+
+    private LongIntMap indexById = new LongIntMap(1024);
+
     private PartnerHandler() {
     }
 
@@ -17,19 +41,365 @@ public class PartnerHandler {
         return instance;
     }
 
-    public HashMap<Long, Partner> getPartners() {
+    /**
+     * Function to get the registered partners by id. The map is the writer's own and changes with every
+     * registration, so it must only be used by the writer, queries look partners up in their view.
+     * @return HashMap
+     */
+    HashMap<Long, Partner> getPartners() {
         return registeredPartners;
     }
 
     public void registerPartner(Long id, Long parentId) throws Exception {
-        Partner p = new Partner();
-        p.setId(id);
-        if (parentId > 0) {
-            if (!registeredPartners.containsKey(parentId)) {
+        QueryView.lockWriter();
+        try {
+            // Re-registering an id would leave the old partner in the tree, with two positions for one id
+            if (registeredPartners.containsKey(id)) {
+                throw new Exception("Partner already registered: " + id);
+            }
+            Partner p = new Partner();
+            p.setId(id);
+            p.setIndex(partnersByIndex.size());
+            if (parentId > 0 && !registeredPartners.containsKey(parentId)) {
                 throw new Exception("Parent ID not found: " + parentId);
             }
-            registeredPartners.get(parentId).addChild(p);
+            JournalHandler.getInstance().appendRegister(id, parentId);
+            if (parentId > 0) {
+                registeredPartners.get(parentId).addChild(p);
+            }
+            registeredPartners.put(id, p);
+            addPartner(p);
+            Statistics.onPartnerRegistered(p);
+            JournalHandler.getInstance().commit();
+        } finally {
+            QueryView.unlockWriter();
+        }
+    }
+
+    /**
+     * Function to register all the partners of a file in one go. Every line has a partner id and
+     * optionally the id of its parent ("partnerId,parentId", an empty or 0 parent for a root partner),
+     * in any order, a header line is skipped. Parents can also be partners which are already registered.
+     * The whole file is checked first (duplicates, unknown parents and cycles), so either all
+     * the partners are registered or none.
+     * @param filePath
+     * @throws Exception
+     */
+    public void loadPartners(String filePath) throws Exception {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            throw new IOException("File not found: " + filePath);
+        }
+        PartnerRows rows;
+        try (InputStream in = new FileInputStream(file)) {
+            rows = PartnerRows.read(in);
+        }
+        int n = rows.size;
+        long[] ids = rows.ids;
+        long[] parentIds = rows.parentIds;
+
+        QueryView.lockWriter();
+        try {
+            LongIntMap rowsById = new LongIntMap(n);
+            for (int row = 0; row < n; row++) {
+                if (registeredPartners.containsKey(ids[row]) || rowsById.get(ids[row]) >= 0) {
+                    throw new Exception("Partner already registered: " + ids[row]);
+                }
+                rowsById.put(ids[row], row);
+            }
+
+            // Parent row of every row, -1 if the parent is a root or an already registered partner
+            int[] parentRows = new int[n];
+            int[] offsets = new int[n + 1];
+            for (int row = 0; row < n; row++) {
+                long parentId = parentIds[row];
+                parentRows[row] = parentId > 0 ? rowsById.get(parentId) : -1;
+                if (parentRows[row] >= 0) {
+                    offsets[parentRows[row] + 1]++;
+                } else if (parentId > 0 && !registeredPartners.containsKey(parentId)) {
+                    throw new Exception("Parent ID not found: " + parentId);
+                }
+            }
+            // Children of every row, in compressed sparse row layout
+            for (int row = 0; row < n; row++) {
+                offsets[row + 1] += offsets[row];
+            }
+            int[] children = new int[n];
+            int[] next = Arrays.copyOf(offsets, n);
+            for (int row = 0; row < n; row++) {
+                if (parentRows[row] >= 0) {
+                    children[next[parentRows[row]]++] = row;
+                }
+            }
+
+            // Breadth first from the rows with a known parent, so parents come before their children.
+            // Rows which are not reached are on a cycle or below one.
+            int[] order = new int[n];
+            int size = 0;
+            for (int row = 0; row < n; row++) {
+                if (parentRows[row] < 0) {
+                    order[size++] = row;
+                }
+            }
+            for (int head = 0; head < size; head++) {
+                int row = order[head];
+                for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+                    order[size++] = children[i];
+                }
+            }
+            if (size < n) {
+                boolean[] reached = new boolean[n];
+                for (int i = 0; i < size; i++) {
+                    reached[order[i]] = true;
+                }
+                int row = 0;
+                while (reached[row]) {
+                    row++;
+                }
+                throw new Exception("Cycle found in partner hierarchy at partner id: " + ids[row]);
+            }
+
+            // Journaled before anything is applied, since applying the rows can't fail half way but writing
+            // the journal can. The records of a failed load must not be committed later, so they are dropped.
+            JournalHandler journal = JournalHandler.getInstance();
+            long mark = journal.mark();
+            try {
+                for (int i = 0; i < n; i++) {
+                    journal.appendRegister(ids[order[i]], parentIds[order[i]]);
+                }
+            } catch (IOException ex) {
+                try {
+                    journal.discard(mark);
+                } catch (IOException discardEx) {
+                    ex.addSuppressed(discardEx);
+                }
+                throw ex;
+            }
+
+            ensureCapacity(partnersByIndex.size() + n);
+            partnersByIndex.ensureCapacity(partnersByIndex.size() + n);
+            if (n > registeredPartners.size()) {
+                // Growing the map once instead of rehashing it on the way
+                HashMap<Long, Partner> resized = new HashMap<>(2 * (registeredPartners.size() + n));
+                resized.putAll(registeredPartners);
+                registeredPartners = resized;
+            }
+            Partner[] partners = new Partner[n];
+            for (int i = 0; i < n; i++) {
+                int row = order[i];
+                Partner p = new Partner();
+                p.setId(ids[row]);
+                p.setIndex(partnersByIndex.size());
+                if (parentRows[row] >= 0) {
+                    partners[parentRows[row]].addChild(p);
+                } else if (parentIds[row] > 0) {
+                    registeredPartners.get(parentIds[row]).addChild(p);
+                }
+                partners[row] = p;
+                registeredPartners.put(ids[row], p);
+                addPartner(p);
+                Statistics.onPartnerRegistered(p);
+            }
+            JournalHandler.getInstance().commit();
+        } finally {
+            QueryView.unlockWriter();
+        }
+    }
+
+    private static int[] newLinks(int capacity) {
+        int[] links = new int[capacity];
+        Arrays.fill(links, -1);
+        return links;
+    }
+
+    private static int[] growLinks(int[] links, int capacity) {
+        int[] grown = Arrays.copyOf(links, capacity);
+        Arrays.fill(grown, links.length, capacity, -1);
+        return grown;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > partnerIds.length) {
+            int grown = Math.max(capacity, partnerIds.length * 2);
+            partnerIds = Arrays.copyOf(partnerIds, grown);
+            parentIndexes = Arrays.copyOf(parentIndexes, grown);
+            firstChildren = growLinks(firstChildren, grown);
+            nextSiblings = growLinks(nextSiblings, grown);
+            lastChildren = growLinks(lastChildren, grown);
+        }
+    }
+
+    private void addPartner(Partner p) {
+        int index = partnersByIndex.size();
+        partnersByIndex.add(p);
+        ensureCapacity(Math.max(1024, index + 1));
+        partnerIds[index] = p.getId();
+        parentIndexes[index] = Objects.isNull(p.getParent()) ? -1 : p.getParent().getIndex();
+        linkPartner(index);
+    }
+
+    /**
+     * Function to link a partner to its parent and add it to the index by id.
+     * Views only see children with a lower index than their partner count, so they never see the new link.
+     * @param index
+     */
+    private void linkPartner(int index) {
+        int parent = parentIndexes[index];
+        if (parent >= 0) {
+            if (lastChildren[parent] < 0) {
+                firstChildren[parent] = index;
+            } else {
+                nextSiblings[lastChildren[parent]] = index;
+            }
+            lastChildren[parent] = index;
+        }
+        indexById.put(partnerIds[index], index);
+    }
+
+    /**
+     * Function to replace all the registered partners, e.g. by a restored snapshot.
+     * Partners are given in index order, so every parent comes before its children.
+     * @param ids
+     * @param parents
+     * Index of the parent partner, -1 for root partners
+     * @throws Exception
+     */
+    void restore(long[] ids, int[] parents) throws Exception {
+        HashMap<Long, Partner> restoredPartners = new HashMap<>();
+        ArrayList<Partner> restoredByIndex = new ArrayList<>(ids.length);
+        // Parent indexes are checked below, so restoring fails before anything is replaced
+        for (int i = 0; i < ids.length; i++) {
+            if (restoredPartners.containsKey(ids[i])) {
+                throw new Exception("Partner already registered: " + ids[i]);
+            }
+            Partner p = new Partner();
+            p.setId(ids[i]);
+            p.setIndex(i);
+            if (parents[i] >= 0) {
+                if (parents[i] >= i) {
+                    throw new Exception("Parent ID not found for partner: " + ids[i]);
+                }
+                restoredByIndex.get(parents[i]).addChild(p);
+            }
+            restoredPartners.put(ids[i], p);
+            restoredByIndex.add(p);
+        }
+        registeredPartners = restoredPartners;
+        partnersByIndex = restoredByIndex;
+        // Not shared with any view, so they can be used as the columns
+        partnerIds = ids;
+        parentIndexes = parents;
+        firstChildren = newLinks(ids.length);
+        nextSiblings = newLinks(ids.length);
+        lastChildren = newLinks(ids.length);
+        indexById = new LongIntMap(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            linkPartner(i);
+        }
+    }
+
+    int getPartnerCount() {
+        return partnersByIndex.size();
+    }
+
+    Partner getPartner(int index) {
+        return partnersByIndex.get(index);
+    }
+
+    long[] getPartnerIds() {
+        return partnerIds;
+    }
+
+    int[] getParentIndexes() {
+        return parentIndexes;
+    }
+
+    /**
+     * Function to get the links of the registered partners for a new view, without copying them
+     * @return PartnerLinks
+     */
+    PartnerLinks snapshotLinks() {
+        return new PartnerLinks(partnerIds, parentIndexes, firstChildren, nextSiblings, indexById.snapshot(),
+                partnersByIndex.size());
+    }
+
+    // Rows of a partner hierarchy file, parsed straight from the bytes into primitive columns
+    private static class PartnerRows {
+
+        private long[] ids = new long[1024];
+
+        private long[] parentIds = new long[1024];
+
+        private int size = 0;
+
+        private static PartnerRows read(InputStream in) throws IOException {
+            PartnerRows rows = new PartnerRows();
+            byte[] buffer = new byte[1 << 16];
+            // Fields of the current line, -1 while a field is empty
+            long[] fields = {-1, -1};
+            int field = 0, line = 1;
+            // Whether spaces followed the digits of the current field, so it can't have more digits
+            boolean fieldEnded = false;
+            // Only the first line can be a header, which doesn't start with a number
+            boolean header = false;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        if (!header) {
+                            rows.endLine(fields, field, line);
+                        }
+                        fields[0] = fields[1] = -1;
+                        field = 0;
+                        fieldEnded = false;
+                        header = false;
+                        line++;
+                    } else if (header) {
+                        continue;
+                    } else if (b == '\r' || b == ' ') {
+                        // Only skipped around a field, "1 2" is not partner 12
+                        fieldEnded = fields[field] >= 0;
+                    } else if (b >= '0' && b <= '9') {
+                        if (fieldEnded) {
+                            throw new IOException("Invalid row at line " + line);
+                        }
+                        long value = Math.max(fields[field], 0);
+                        if (value > (Long.MAX_VALUE - 9) / 10) {
+                            throw new IOException("Invalid partner id at line " + line);
+                        }
+                        fields[field] = value * 10 + (b - '0');
+                    } else if (b == ',' && field == 0) {
+                        field = 1;
+                        fieldEnded = false;
+                    } else if (line == 1 && fields[0] < 0 && field == 0) {
+                        header = true;
+                    } else {
+                        throw new IOException("Invalid row at line " + line);
+                    }
+                }
+            }
+            if (!header) {
+                rows.endLine(fields, field, line);
+            }
+            return rows;
+        }
+
+        private void endLine(long[] fields, int field, int line) throws IOException {
+            if (fields[0] <= 0) {
+                if (fields[0] < 0 && field == 0) {
+                    // Empty line
+                    return;
+                }
+                throw new IOException("Invalid partner id at line " + line);
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                parentIds = Arrays.copyOf(parentIds, size * 2);
+            }
+            ids[size] = fields[0];
+            parentIds[size] = Math.max(fields[1], 0);
+            size++;
         }
-        registeredPartners.put(id, p);
     }
 }
@@ -0,0 +1,108 @@
+package com.project.reward.simulator.controller;
+
+/**
+ * Parent and child links of the partners of a view, by partner index, for the queries on one partner
+ * and its sub-tree. Unlike the numbering of {@link PartnerTree}, registering a partner only appends to
+ * them, so every view shares them with the writer instead of numbering all the partners again.
+ *
+ * Children are linked in registration order, so the links to partners registered after the view
+ * are at the end of a list and are ignored: a view never sees them.
+ */
+final class PartnerLinks {
+
+    private final long[] partnerIds;
+
+    private final int[] parentIndexes;
+
+    // First child and next sibling by partner index, -1 for none
+    private final int[] firstChildren;
+
+    private final int[] nextSiblings;
+
+    private final LongIntMap indexById;
+
+    private final int count;
+
+    PartnerLinks(long[] partnerIds, int[] parentIndexes, int[] firstChildren, int[] nextSiblings,
+                 LongIntMap indexById, int count) {
+        this.partnerIds = partnerIds;
+        this.parentIndexes = parentIndexes;
+        this.firstChildren = firstChildren;
+        this.nextSiblings = nextSiblings;
+        this.indexById = indexById;
+        this.count = count;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Function to number the partners in pre-order, for the queries which go over all of them
+     * @return PartnerTree
+     */
+    PartnerTree buildTree() {
+        return PartnerTree.build(partnerIds, parentIndexes, count);
+    }
+
+    /**
+     * Function to get the index of a partner
+     * @param partnerId
+     * @return int
+     * -1 if the partner is not in the view
+     */
+    int getIndex(long partnerId) {
+        int index = indexById.get(partnerId);
+        // The map is shared with the writer, see LongIntMap.snapshot
+        return index >= 0 && index < count && partnerIds[index] == partnerId ? index : -1;
+    }
+
+    long getPartnerId(int partner) {
+        return partnerIds[partner];
+    }
+
+    /**
+     * Function to get the first child of a partner
+     * @param partner
+     * @return int
+     * -1 if the partner has no children
+     */
+    int getFirstChild(int partner) {
+        int child = firstChildren[partner];
+        return child < count ? child : -1;
+    }
+
+    /**
+     * Function to get the next sibling of a partner
+     * @param partner
+     * @return int
+     * -1 for the last child
+     */
+    int getNextSibling(int partner) {
+        int sibling = nextSiblings[partner];
+        return sibling < count ? sibling : -1;
+    }
+
+    /**
+     * Function to get the partner after the given one in a pre-order walk of a sub-tree, without recursion
+     * @param root
+     * @param partner
+     * A partner in the sub-tree of root
+     * @return int
+     * -1 after the last partner of the sub-tree
+     */
+    int getNextInSubtree(int root, int partner) {
+        int child = getFirstChild(partner);
+        if (child >= 0) {
+            return child;
+        }
+        while (partner != root) {
+            int sibling = getNextSibling(partner);
+            if (sibling >= 0) {
+                return sibling;
+            }
+            partner = parentIndexes[partner];
+        }
+        return -1;
+    }
+}
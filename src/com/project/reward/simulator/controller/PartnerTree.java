@@ -0,0 +1,145 @@
+package com.project.reward.simulator.controller;
+
+import java.util.Arrays;
+
+/**
+ * Nested-set (Euler tour) numbering of the partner tree.
+ * Partners are numbered in pre-order, so the sub-tree of a partner is the range of positions
+ * [position, subtreeEnd) and "is partner in sub-tree" is a range check. Walking the positions
+ * backwards visits every child before its parent, which gives a bottom-up pass without recursion.
+ * Numbering goes over all the partners, so queries on one partner use {@link PartnerLinks} instead.
+ */
+class PartnerTree {
+
+    private final long[] partnerIds;
+
+    private final int[] partnerIndexes;
+
+    private final int[] parents;
+
+    private final int[] subtreeEnds;
+
+    private final int[] positionByIndex;
+
+    private PartnerTree(int size) {
+        this.partnerIds = new long[size];
+        this.partnerIndexes = new int[size];
+        this.parents = new int[size];
+        this.subtreeEnds = new int[size];
+        this.positionByIndex = new int[size];
+    }
+
+    /**
+     * Function to number the first partners of the given columns, iteratively so deep trees don't
+     * overflow the stack. Children keep their registration order.
+     * @param ids
+     * Partner ids by partner index
+     * @param parentIndexes
+     * Index of the parent partner by partner index, -1 for root partners
+     * @param count
+     * Number of partners to number
+     * @return PartnerTree
+     */
+    static PartnerTree build(long[] ids, int[] parentIndexes, int count) {
+        // Children of every partner as ranges of one array (CSR), in index order
+        int[] childStarts = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            if (parentIndexes[i] >= 0) {
+                childStarts[parentIndexes[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            childStarts[i + 1] += childStarts[i];
+        }
+        int[] children = new int[childStarts[count]];
+        int[] next = Arrays.copyOf(childStarts, count);
+        for (int i = 0; i < count; i++) {
+            if (parentIndexes[i] >= 0) {
+                children[next[parentIndexes[i]]++] = i;
+            }
+        }
+
+        PartnerTree tree = new PartnerTree(count);
+        int[] positionByIndex = tree.positionByIndex;
+        int[] stack = new int[count];
+        int position = 0;
+        for (int root = 0; root < count; root++) {
+            if (parentIndexes[root] >= 0) {
+                continue;
+            }
+            int top = 0;
+            stack[top++] = root;
+            while (top > 0) {
+                int p = stack[--top];
+                positionByIndex[p] = position;
+                tree.partnerIds[position] = ids[p];
+                tree.partnerIndexes[position] = p;
+                tree.parents[position] = parentIndexes[p] < 0 ? -1 : positionByIndex[parentIndexes[p]];
+                position++;
+                for (int c = childStarts[p + 1] - 1; c >= childStarts[p]; c--) {
+                    stack[top++] = children[c];
+                }
+            }
+        }
+
+        // Sub-tree sizes, children are always after their parent
+        int[] sizes = new int[position];
+        for (int pos = position - 1; pos >= 0; pos--) {
+            sizes[pos]++;
+            if (tree.parents[pos] >= 0) {
+                sizes[tree.parents[pos]] += sizes[pos];
+            }
+            tree.subtreeEnds[pos] = pos + sizes[pos];
+        }
+        return tree;
+    }
+
+    int size() {
+        return partnerIds.length;
+    }
+
+    int getPositionByIndex(int partnerIndex) {
+        return positionByIndex[partnerIndex];
+    }
+
+    long getPartnerId(int position) {
+        return partnerIds[position];
+    }
+
+    int getPartnerIndex(int position) {
+        return partnerIndexes[position];
+    }
+
+    /**
+     * Function to get the position of the parent partner
+     * @param position
+     * @return int
+     * -1 for root partners
+     */
+    int getParent(int position) {
+        return parents[position];
+    }
+
+    /**
+     * Function to get the end (exclusive) of the position range of the sub-tree
+     * @param position
+     * @return int
+     */
+    int getSubtreeEnd(int position) {
+        return subtreeEnds[position];
+    }
+
+    /**
+     * Function to get the position of the first child, the next ones are found by {@link #getNextSibling(int)}
+     * @param position
+     * @return int
+     * Equal to the sub-tree end if the partner has no children
+     */
+    int getFirstChild(int position) {
+        return position + 1;
+    }
+
+    int getNextSibling(int position) {
+        return subtreeEnds[position];
+    }
+}
@@ -0,0 +1,327 @@
+package com.project.reward.simulator.controller;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of LEVEL and REWARDS results by (partner, year, quarter).
+ *
+ * Entries are split in shards by partner id. A lookup doesn't lock at all, only adding a result
+ * and invalidating lock the shard of the partner. A full shard evicts the least recently used
+ * part of its entries in one go, by when they were used last.
+ *
+ * A level or reward depends on the contracts in the sub-tree of the partner (its level and the levels
+ * of its children), so the writer invalidates the entries of the partner of a changed contract and
+ * of all its ancestors, but only for the quarters in which the contract's activity changed.
+ * Registering a partner invalidates all the entries of its ancestors.
+ *
+ * Every entry remembers the version of the view it was calculated on. A query only uses entries
+ * which are not newer than its view, and a result is only added when no change has been made since
+ * its view, so queries on old views neither see nor add results of another version of the data.
+ */
+public class QueryCache {
+
+    static final int MAX_ENTRIES = 1 << 16;
+
+    private static final QueryCache instance = new QueryCache(MAX_ENTRIES);
+
+    enum Kind {
+        LEVEL, REWARD
+    }
+
+    // Calculation of a result which isn't cached
+    interface Calculation {
+        Object calculate() throws Exception;
+    }
+
+    private static final class Key {
+
+        private final long partnerId;
+
+        // Quarter ordinal, year * 4 + quarter - 1
+        private final int quarter;
+
+        private final Kind kind;
+
+        private Key(long partnerId, int quarter, Kind kind) {
+            this.partnerId = partnerId;
+            this.quarter = quarter;
+            this.kind = kind;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return partnerId == other.partnerId && quarter == other.quarter && kind == other.kind;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(partnerId * 31 + quarter) * 2 + kind.ordinal();
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+
+        private final long version;
+
+        // Tick of the shard at the last use, for the eviction
+        private volatile long used;
+
+        private Entry(Object value, long version, long used) {
+            this.value = value;
+            this.version = version;
+            this.used = used;
+        }
+    }
+
+    private static final class Shard {
+
+        private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+        // Keys of the entries by partner id, to invalidate a partner without looking at all the entries.
+        // Guarded by the shard.
+        private final HashMap<Long, HashSet<Key>> keysByPartner = new HashMap<>();
+
+        // Number of entries added so far, a clock which is cheaper to read than the time.
+        // Only advanced with the shard locked.
+        private volatile long ticks = 0;
+    }
+
+    private static final int SHARDS = 16;
+
+    // Part of the entries of a full shard which is evicted
+    private static final int EVICTED_PART = 16;
+
+    // Number of entries whose last use decides which ones are evicted
+    private static final int EVICTION_SAMPLES = 64;
+
+    private final int maxEntriesPerShard;
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    // Version of the view which will have the last change, results of older views are not added
+    private volatile long invalidatedVersion = 0;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    // Whether queries calculate every result without looking it up or adding it, e.g. for benchmarks
+    private volatile boolean bypassed = false;
+
+    QueryCache(int maxEntries) {
+        this.maxEntriesPerShard = Math.max(EVICTED_PART, maxEntries / SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    public static QueryCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Function to make the queries skip the cache, or use it again. The writer keeps invalidating
+     * the entries meanwhile, so they are still valid afterwards.
+     * @param bypassed
+     */
+    public void setBypassed(boolean bypassed) {
+        this.bypassed = bypassed;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.entries.size();
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        for (Shard shard : shards) {
+            if (!shard.entries.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Shard getShard(long partnerId) {
+        return shards[(Long.hashCode(partnerId * 0x9E3779B97F4A7C15L) >>> 16) & (SHARDS - 1)];
+    }
+
+    /**
+     * Function to get a cached result, or to calculate and cache it
+     * @param view
+     * View which the result is calculated on
+     * @param partnerId
+     * @param year
+     * @param quarter
+     * @param kind
+     * @param calculation
+     * Calculation of the result on the view
+     * @return Object
+     * @throws Exception
+     */
+    Object get(QueryView view, long partnerId, int year, int quarter, Kind kind, Calculation calculation) throws Exception {
+        if (bypassed) {
+            return calculation.calculate();
+        }
+        Key key = new Key(partnerId, year * 4 + quarter - 1, kind);
+        Shard shard = getShard(partnerId);
+        Entry entry = shard.entries.get(key);
+        if (Objects.nonNull(entry) && entry.version <= view.getVersion()) {
+            entry.used = shard.ticks;
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        // Queries racing for the same key calculate it more than once
+        Object value = calculation.calculate();
+        synchronized (shard) {
+            if (view.getVersion() >= invalidatedVersion && !shard.entries.containsKey(key)) {
+                shard.entries.put(key, new Entry(value, view.getVersion(), ++shard.ticks));
+                // The writer raises the version and then skips the shard if it has no entries, so checking
+                // again after adding it, either the writer invalidates the entry or it's removed here
+                if (view.getVersion() < invalidatedVersion) {
+                    shard.entries.remove(key);
+                    return value;
+                }
+                shard.keysByPartner.computeIfAbsent(partnerId, id -> new HashSet<>()).add(key);
+                if (shard.entries.size() > maxEntriesPerShard) {
+                    evict(shard);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Function to evict about the least recently used part of the entries of a full shard, by the last use
+     * of a sample of them. Must be called with the shard locked.
+     * @param shard
+     */
+    private void evict(Shard shard) {
+        int size = shard.entries.size();
+        int step = Math.max(1, size / EVICTION_SAMPLES);
+        long[] sample = new long[EVICTION_SAMPLES];
+        int n = 0, i = 0;
+        for (Entry entry : shard.entries.values()) {
+            if (i++ % step == 0 && n < sample.length) {
+                sample[n++] = entry.used;
+            }
+        }
+        Arrays.sort(sample, 0, n);
+        long cutoff = sample[Math.max(0, n / EVICTED_PART - 1)];
+        int evicted = 0;
+        for (Iterator<Map.Entry<Key, Entry>> it = shard.entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getValue().used <= cutoff) {
+                it.remove();
+                removeKey(shard, entry.getKey());
+                evicted++;
+            }
+        }
+        evictions.add(evicted);
+    }
+
+    private static void removeKey(Shard shard, Key key) {
+        HashSet<Key> keys = shard.keysByPartner.get(key.partnerId);
+        if (Objects.nonNull(keys)) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                shard.keysByPartner.remove(key.partnerId);
+            }
+        }
+    }
+
+    /**
+     * Function to invalidate the entries of a partner and all its ancestors in a range of quarters.
+     * Must be called by the writer, before the change is published.
+     * @param partner
+     * Partner index
+     * @param fromQuarter
+     * First quarter ordinal
+     * @param toQuarter
+     * Last quarter ordinal
+     */
+    void invalidate(int partner, int fromQuarter, int toQuarter) {
+        invalidatedVersion = QueryView.current().getVersion() + 1;
+        if (isEmpty() || fromQuarter > toQuarter) {
+            return;
+        }
+        PartnerHandler partners = PartnerHandler.getInstance();
+        long[] partnerIds = partners.getPartnerIds();
+        int[] parentIndexes = partners.getParentIndexes();
+        for (int p = partner; p >= 0; p = parentIndexes[p]) {
+            Shard shard = getShard(partnerIds[p]);
+            if (shard.entries.isEmpty()) {
+                continue;
+            }
+            synchronized (shard) {
+                HashSet<Key> keys = shard.keysByPartner.get(partnerIds[p]);
+                if (Objects.isNull(keys)) {
+                    continue;
+                }
+                for (Iterator<Key> it = keys.iterator(); it.hasNext(); ) {
+                    Key key = it.next();
+                    if (key.quarter >= fromQuarter && key.quarter <= toQuarter) {
+                        it.remove();
+                        shard.entries.remove(key);
+                        invalidations.increment();
+                    }
+                }
+                if (keys.isEmpty()) {
+                    shard.keysByPartner.remove(partnerIds[p]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Function to invalidate all the entries, e.g. after all the data is replaced.
+     * Must be called by the writer, before the change is published.
+     */
+    void clear() {
+        invalidatedVersion = QueryView.current().getVersion() + 1;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                invalidations.add(shard.entries.size());
+                shard.entries.clear();
+                shard.keysByPartner.clear();
+            }
+        }
+    }
+}
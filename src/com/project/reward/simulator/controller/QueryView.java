@@ -0,0 +1,147 @@
+package com.project.reward.simulator.controller;
+
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Immutable view of all the partners and contracts, which the queries run on.
+ *
+ * There is one writer at a time: every change (registration, load, restore...) is done between
+ * {@link #lockWriter()} and {@link #unlockWriter()}, and the outermost unlock publishes a new view.
+ * Queries take the current view once and only read from it, so they never wait for the writer
+ * and never see a half applied change. Publishing is cheap: the columns are append-only and shared,
+ * the parts which are changed in place are copied by the writer on the first change after a publish.
+ */
+public class QueryView {
+
+    private static final ReentrantLock writeLock = new ReentrantLock();
+
+    private static volatile QueryView current = empty();
+
+    private final PartnerLinks links;
+
+    // Number of views published before this one
+    private final long version;
+
+    private final ContractStore store;
+
+    private final ContractIndex index;
+
+    // Built by the first query which needs them
+    private volatile PartnerTree tree;
+
+    private volatile RewardCube rewardCube;
+
+    private QueryView(long version, PartnerLinks links, ContractStore store, ContractIndex index,
+                      RewardCube rewardCube) {
+        this.version = version;
+        this.links = links;
+        this.store = store;
+        this.index = index;
+        this.rewardCube = rewardCube;
+    }
+
+    private static QueryView empty() {
+        ContractStore store = new ContractStore().snapshot();
+        PartnerLinks links = new PartnerLinks(new long[0], new int[0], new int[0], new int[0], new LongIntMap(0), 0);
+        return new QueryView(0, links, store, new ContractIndex(store).snapshot(store), null);
+    }
+
+    /**
+     * Function to get the latest published view, queries which have to be consistent with each other
+     * can run on the same view
+     * @return QueryView
+     */
+    public static QueryView current() {
+        return current;
+    }
+
+    /**
+     * Function to start a change. Changes can be nested, only the outermost one publishes a view.
+     */
+    static void lockWriter() {
+        writeLock.lock();
+        if (writeLock.getHoldCount() == 1) {
+            // The current view is the state of the writer, so a reward cube built for it can be adopted
+            Statistics.onWriterLocked(current);
+        }
+    }
+
+    /**
+     * Function to finish a change, publishing a new view if it's the outermost one
+     */
+    static void unlockWriter() {
+        try {
+            if (writeLock.getHoldCount() == 1) {
+                PartnerHandler partners = PartnerHandler.getInstance();
+                ContractHandler contracts = ContractHandler.getInstance();
+                ContractStore store = contracts.getStore().snapshot();
+                current = new QueryView(current.version + 1, partners.snapshotLinks(), store,
+                        contracts.getIndex().snapshot(store), Statistics.snapshotRewardCube());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    int getPartnerCount() {
+        return links.size();
+    }
+
+    ContractStore getStore() {
+        return store;
+    }
+
+    ContractIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Function to get the links of the partners, for the queries on one partner
+     * @return PartnerLinks
+     */
+    PartnerLinks getLinks() {
+        return links;
+    }
+
+    /**
+     * Function to get the pre-order numbering of the partners, building it on first use.
+     * Building it goes over all the partners, so it's only used by the queries which do too.
+     * @return PartnerTree
+     */
+    PartnerTree getTree() {
+        PartnerTree built = tree;
+        if (Objects.isNull(built)) {
+            // Queries racing here may build it more than once, which is harmless
+            built = links.buildTree();
+            tree = built;
+        }
+        return built;
+    }
+
+    /**
+     * Function to get the reward cube of this view, building it on first use
+     * @return RewardCube
+     */
+    RewardCube getRewardCube() {
+        RewardCube built = rewardCube;
+        if (Objects.isNull(built)) {
+            built = RewardCube.build(store, getTree());
+            rewardCube = built;
+        }
+        return built;
+    }
+
+    /**
+     * Function to get the reward cube of this view if it's already built
+     * @return RewardCube
+     * null if it's not built
+     */
+    RewardCube getBuiltRewardCube() {
+        return rewardCube;
+    }
+}
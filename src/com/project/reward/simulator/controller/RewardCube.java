@@ -0,0 +1,442 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.data.Contract.ContractType;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Materialized table of active contract counts and rewards for every partner and every quarter
+ * in which a contract can be active.
+ * It's built in one sweep over the contracts: each contract adds +1/-1 at the quarters where
+ * it becomes active/inactive and a prefix sum along the timeline gives the counts.
+ * After that it's maintained incrementally: a new or ended contract only updates the counters
+ * of its partner's ancestor chain, and only the cached rewards of that chain are recalculated.
+ * Rows are partner indexes.
+ *
+ * Queries run on read-only snapshots (see {@link #snapshot()}). The writer copies a row the first time
+ * it changes after a snapshot, so a snapshot never sees a change and its cached rewards stay valid.
+ */
+class RewardCube {
+
+    private static final int EXPIRY_QUARTERS = 4 * Statistics.CONTRACT_REWARD_EXPIRY_TIME;
+
+    // Extra quarters allocated when the timeline grows, so growing (and copying every row) is rare
+    private static final int GROWTH_QUARTERS = 4 * 4;
+
+    // Counters of one partner, copied by the writer the first time they change after a snapshot
+    private static final class Row {
+
+        // [quarter] tables: active contracts in the sub-tree, direct contracts in the same quarter
+        // of year and new rabbit contracts. The last two are null for partners without contracts.
+        private final int[] activeCounts;
+
+        private int[] directCounts;
+
+        private int[] newRabbitCounts;
+
+        // Generation of the writer in which this row was created, older rows are shared with a snapshot
+        private final int generation;
+
+        // Cached rewards, calculated by the queries. A row changes whenever one of its children does,
+        // so they stay valid as long as the row is not copied.
+        private volatile long[] rewards;
+
+        private Row(int[] activeCounts, int[] directCounts, int[] newRabbitCounts, int generation) {
+            this.activeCounts = activeCounts;
+            this.directCounts = directCounts;
+            this.newRabbitCounts = newRabbitCounts;
+            this.generation = generation;
+        }
+    }
+
+    private int firstYear = Integer.MAX_VALUE;
+
+    private int lastYear = Integer.MIN_VALUE;
+
+    // Quarter ordinal of index 0 and number of allocated quarters in every row
+    private int baseQuarter;
+
+    private int numQuarters = 0;
+
+    private int numRows = 0;
+
+    // Only appended to, so it's shared with the snapshots
+    private int[] parentRows;
+
+    private Row[] rows;
+
+    // Whether the rows array is shared with the last snapshot
+    private boolean rowsShared = false;
+
+    private int generation = 0;
+
+    /**
+     * Function to get the first quarter ordinal in which a contract is active
+     * (started strictly before the last day of the quarter)
+     * @param startDay
+     * @return int
+     */
+    static int firstActiveQuarter(int startDay) {
+        int startQuarter = EpochDays.quarterOrdinal(startDay);
+        return startQuarter + (startDay == EpochDays.lastDayOfQuarter(startQuarter) ? 1 : 0);
+    }
+
+    /**
+     * Function to get the last quarter ordinal in which a contract is active
+     * (neither expired nor ended by the last day of the quarter)
+     * @param startDay
+     * @param endDay
+     * ContractStore.NO_END if the contract is not ended
+     * @return int
+     */
+    static int lastActiveQuarter(int startDay, int endDay) {
+        int startQuarter = EpochDays.quarterOrdinal(startDay);
+        int last = startQuarter + EXPIRY_QUARTERS - (startDay == EpochDays.firstDayOfQuarter(startQuarter) ? 1 : 0);
+        if (endDay != ContractStore.NO_END) {
+            last = Math.min(last, EpochDays.quarterOrdinal(endDay) - 1);
+        }
+        return last;
+    }
+
+    private RewardCube(int capacity) {
+        this.parentRows = new int[capacity];
+        this.rows = new Row[capacity];
+    }
+
+    private RewardCube(RewardCube cube) {
+        this.firstYear = cube.firstYear;
+        this.lastYear = cube.lastYear;
+        this.baseQuarter = cube.baseQuarter;
+        this.numQuarters = cube.numQuarters;
+        this.numRows = cube.numRows;
+        this.parentRows = cube.parentRows;
+        this.rows = cube.rows;
+        this.rowsShared = true;
+        this.generation = cube.generation + 1;
+    }
+
+    /**
+     * Function to create a read-only view of the cube as it is now, which is not affected by later changes
+     * @return RewardCube
+     */
+    RewardCube snapshot() {
+        RewardCube snapshot = new RewardCube(this);
+        // Every row is shared with the snapshot from now on
+        rowsShared = true;
+        generation++;
+        return snapshot;
+    }
+
+    /**
+     * Function to create a copy of a read-only cube, which can be updated without affecting it
+     * @return RewardCube
+     */
+    RewardCube copyForWriter() {
+        return new RewardCube(this);
+    }
+
+    /**
+     * Function to build the cube for all the stored contracts and partners
+     * @param store
+     * @param tree
+     * @return RewardCube
+     */
+    static RewardCube build(ContractStore store, PartnerTree tree) {
+        int n = tree.size();
+        RewardCube cube = new RewardCube(Math.max(n, 16));
+        cube.numRows = n;
+        Arrays.fill(cube.parentRows, -1);
+        for (int position = 0; position < n; position++) {
+            int parent = tree.getParent(position);
+            if (parent >= 0) {
+                cube.parentRows[tree.getPartnerIndex(position)] = tree.getPartnerIndex(parent);
+            }
+        }
+
+        int lastQuarter = Integer.MIN_VALUE;
+        for (int slot = 0; slot < store.size(); slot++) {
+            int year = EpochDays.getYear(store.getStartQuarter(slot));
+            cube.firstYear = Math.min(cube.firstYear, year);
+            cube.lastYear = Math.max(cube.lastYear, year);
+            lastQuarter = Math.max(lastQuarter, lastActiveQuarter(store.getStartDay(slot), store.getEndDay(slot)));
+        }
+        if (store.size() > 0) {
+            cube.baseQuarter = cube.firstYear * 4;
+            cube.numQuarters = Math.max(lastQuarter, cube.lastYear * 4 + 3) - cube.baseQuarter + 1;
+        }
+        int numQuarters = cube.numQuarters;
+        int base = cube.baseQuarter;
+
+        // Difference arrays, direct contracts only count every 4th quarter (same quarter of year)
+        int[][] counts = new int[n][];
+        int[][] directCounts = new int[n][];
+        int[][] newRabbitCounts = new int[n][];
+        for (int row = 0; row < n; row++) {
+            counts[row] = new int[numQuarters];
+        }
+        for (int slot = 0; slot < store.size(); slot++) {
+            int row = store.getPartner(slot);
+            int startQuarter = store.getStartQuarter(slot) - base;
+            int from = firstActiveQuarter(store.getStartDay(slot)) - base;
+            int to = lastActiveQuarter(store.getStartDay(slot), store.getEndDay(slot)) - base;
+            if (from > to) {
+                continue;
+            }
+            if (Objects.isNull(directCounts[row])) {
+                directCounts[row] = new int[numQuarters];
+                newRabbitCounts[row] = new int[numQuarters];
+            }
+            counts[row][from]++;
+            if (to + 1 < numQuarters) {
+                counts[row][to + 1]--;
+            }
+
+            int directFrom = from + Math.floorMod(startQuarter - from, 4);
+            if (directFrom <= to) {
+                directCounts[row][directFrom]++;
+                int directEnd = directFrom + 4 * ((to - directFrom) / 4 + 1);
+                if (directEnd < numQuarters) {
+                    directCounts[row][directEnd]--;
+                }
+            }
+            if (store.getType(slot).equals(ContractType.Rabbit) && startQuarter >= from && startQuarter <= to) {
+                newRabbitCounts[row][startQuarter]++;
+            }
+        }
+
+        // Prefix sums along the timeline, then one bottom-up pass adds every sub-tree to its parent
+        for (int row = 0; row < n; row++) {
+            for (int q = 1; q < numQuarters; q++) {
+                counts[row][q] += counts[row][q - 1];
+            }
+            if (Objects.nonNull(directCounts[row])) {
+                for (int q = 4; q < numQuarters; q++) {
+                    directCounts[row][q] += directCounts[row][q - 4];
+                }
+            }
+        }
+        for (int position = n - 1; position >= 0; position--) {
+            int row = tree.getPartnerIndex(position);
+            int parent = cube.parentRows[row];
+            if (parent >= 0) {
+                for (int q = 0; q < numQuarters; q++) {
+                    counts[parent][q] += counts[row][q];
+                }
+            }
+        }
+        for (int row = 0; row < n; row++) {
+            cube.rows[row] = new Row(counts[row], directCounts[row], newRabbitCounts[row], cube.generation);
+        }
+        return cube;
+    }
+
+    /**
+     * Function to add the row of a newly registered partner.
+     * A new partner has no contracts yet, so none of the counters or rewards change.
+     * @param partner
+     * Partner index
+     * @param parent
+     * Partner index of the parent, -1 for root partners
+     */
+    void addPartner(int partner, int parent) {
+        if (numRows == parentRows.length) {
+            int capacity = numRows * 2;
+            parentRows = Arrays.copyOf(parentRows, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+            rowsShared = false;
+        }
+        // Rows after the number of rows of a snapshot are not visible to it
+        numRows = partner + 1;
+        parentRows[partner] = parent;
+        rows[partner] = new Row(new int[numQuarters], null, null, generation);
+    }
+
+    /**
+     * Function to get a row which can be changed, copying it if it's shared with a snapshot
+     * @param row
+     * @return Row
+     */
+    private Row getOwnRow(int row) {
+        Row own = rows[row];
+        if (own.generation != generation) {
+            own = new Row(own.activeCounts.clone(),
+                    Objects.isNull(own.directCounts) ? null : own.directCounts.clone(),
+                    Objects.isNull(own.newRabbitCounts) ? null : own.newRabbitCounts.clone(),
+                    generation);
+            if (rowsShared) {
+                rows = rows.clone();
+                rowsShared = false;
+            }
+            rows[row] = own;
+        }
+        own.rewards = null;
+        return own;
+    }
+
+    /**
+     * Function to add (sign = 1) or remove (sign = -1) the contribution of a contract.
+     * Only the counters of the partner's ancestor chain change, so only their rewards get dirty.
+     * @param partner
+     * Partner index
+     * @param type
+     * @param startDay
+     * @param endDay
+     * @param sign
+     */
+    void apply(int partner, ContractType type, int startDay, int endDay, int sign) {
+        int startQuarter = EpochDays.quarterOrdinal(startDay);
+        if (sign > 0) {
+            firstYear = Math.min(firstYear, startQuarter / 4);
+            lastYear = Math.max(lastYear, startQuarter / 4);
+            ensureRange(firstYear * 4, lastYear * 4 + 3);
+        }
+        int from = firstActiveQuarter(startDay);
+        int to = lastActiveQuarter(startDay, endDay);
+        if (from > to) {
+            return;
+        }
+        ensureRange(from, to);
+
+        Row row = getOwnRow(partner);
+        if (Objects.isNull(row.directCounts)) {
+            row.directCounts = new int[numQuarters];
+            row.newRabbitCounts = new int[numQuarters];
+        }
+        for (int q = from + Math.floorMod(startQuarter - from, 4); q <= to; q += 4) {
+            row.directCounts[q - baseQuarter] += sign;
+        }
+        if (type.equals(ContractType.Rabbit) && startQuarter >= from && startQuarter <= to) {
+            row.newRabbitCounts[startQuarter - baseQuarter] += sign;
+        }
+        for (int r = partner; r >= 0; r = parentRows[r]) {
+            int[] counts = getOwnRow(r).activeCounts;
+            for (int q = from; q <= to; q++) {
+                counts[q - baseQuarter] += sign;
+            }
+        }
+    }
+
+    /**
+     * Function to make sure that every row covers the given quarters, re-allocating all rows if not
+     * @param fromQuarter
+     * @param toQuarter
+     */
+    private void ensureRange(int fromQuarter, int toQuarter) {
+        if (numQuarters > 0 && fromQuarter >= baseQuarter && toQuarter < baseQuarter + numQuarters) {
+            return;
+        }
+        int newBase = numQuarters == 0 ? fromQuarter : Math.min(baseQuarter, fromQuarter - GROWTH_QUARTERS);
+        int newEnd = numQuarters == 0
+                ? toQuarter + 1
+                : Math.max(baseQuarter + numQuarters, toQuarter + 1 + GROWTH_QUARTERS);
+        int offset = numQuarters == 0 ? 0 : baseQuarter - newBase;
+        Row[] grownRows = new Row[rows.length];
+        for (int row = 0; row < numRows; row++) {
+            grownRows[row] = new Row(grow(rows[row].activeCounts, offset, newEnd - newBase),
+                    grow(rows[row].directCounts, offset, newEnd - newBase),
+                    grow(rows[row].newRabbitCounts, offset, newEnd - newBase),
+                    generation);
+        }
+        rows = grownRows;
+        rowsShared = false;
+        baseQuarter = newBase;
+        numQuarters = newEnd - newBase;
+    }
+
+    private static int[] grow(int[] values, int offset, int length) {
+        if (Objects.isNull(values)) {
+            return null;
+        }
+        int[] grown = new int[length];
+        System.arraycopy(values, 0, grown, offset, values.length);
+        return grown;
+    }
+
+    /**
+     * Function to get the cached rewards of a row, calculating them if they are not cached yet
+     * @param row
+     * @param links
+     * Links of the partners which are in the cube
+     * @return long[]
+     */
+    private long[] getRewards(int row, PartnerLinks links) {
+        Row own = rows[row];
+        long[] cached = own.rewards;
+        if (Objects.nonNull(cached)) {
+            return cached;
+        }
+        long[] reward = new long[numQuarters];
+        int[] rates = new int[numQuarters];
+        for (int q = 0; q < numQuarters; q++) {
+            rates[q] = Statistics.getLevel(own.activeCounts[q]).getRewardPerContract();
+        }
+
+        // Rewards for direct contracts, plus the level difference for the direct contracts of each child
+        if (Objects.nonNull(own.directCounts)) {
+            for (int q = 0; q < numQuarters; q++) {
+                reward[q] = (long) own.directCounts[q] * rates[q]
+                        + (long) own.newRabbitCounts[q] * Statistics.RABBIT_BONUS;
+            }
+        }
+        for (int child = links.getFirstChild(row); child >= 0; child = links.getNextSibling(child)) {
+            Row childRow = rows[child];
+            if (Objects.isNull(childRow.directCounts)) {
+                continue;
+            }
+            for (int q = 0; q < numQuarters; q++) {
+                int rateDifference = rates[q]
+                        - Statistics.getLevel(childRow.activeCounts[q]).getRewardPerContract();
+                reward[q] += (long) childRow.directCounts[q] * rateDifference;
+            }
+        }
+        own.rewards = reward;
+        return reward;
+    }
+
+    boolean isEmpty() {
+        return firstYear > lastYear;
+    }
+
+    int getFirstYear() {
+        return firstYear;
+    }
+
+    int getLastYear() {
+        return lastYear;
+    }
+
+    /**
+     * Function to get the number of active contracts in the sub-tree of a partner
+     * @param partner
+     * Partner index
+     * @param year
+     * @param quarter
+     * @return int
+     */
+    int getActiveCount(int partner, int year, int quarter) {
+        int q = year * 4 + quarter - 1 - baseQuarter;
+        if (q < 0 || q >= numQuarters) {
+            return 0;
+        }
+        return rows[partner].activeCounts[q];
+    }
+
+    /**
+     * Function to get the reward of a partner
+     * @param partner
+     * Partner index
+     * @param year
+     * @param quarter
+     * @param links
+     * Links of the partners which are in the cube
+     * @return long
+     */
+    long getReward(int partner, int year, int quarter, PartnerLinks links) {
+        int q = year * 4 + quarter - 1 - baseQuarter;
+        if (q < 0 || q >= numQuarters) {
+            return 0;
+        }
+        return getRewards(partner, links)[q];
+    }
+}
@@ -0,0 +1,86 @@
+package com.project.reward.simulator.controller;
+
+import java.io.IOException;
+
+/**
+ * Rewards of one partner for consecutive quarters, read one (year, quarter, reward) record at a time.
+ * A reward is only calculated when its record is reached, so reading the first one doesn't depend on
+ * how many quarters there are, and the records can be written straight to a buffered sink.
+ *
+ * The latency of the query is recorded when the records have been written with {@link #writeTo}.
+ */
+public final class RewardRecords {
+
+    private final RewardCube cube;
+
+    private final PartnerLinks links;
+
+    private final int partner;
+
+    private final int lastQuarter;
+
+    private final long startNanos;
+
+    // Quarter ordinal of the next record
+    private int nextQuarter;
+
+    private int year;
+
+    private int quarter;
+
+    private long reward;
+
+    RewardRecords(RewardCube cube, PartnerLinks links, int partner, int firstQuarter, int lastQuarter, long startNanos) {
+        this.cube = cube;
+        this.links = links;
+        this.partner = partner;
+        this.nextQuarter = firstQuarter;
+        this.lastQuarter = lastQuarter;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Function to move to the next record
+     * @return boolean
+     * false if there are no more records
+     */
+    public boolean next() {
+        if (nextQuarter > lastQuarter) {
+            return false;
+        }
+        year = EpochDays.getYear(nextQuarter);
+        quarter = EpochDays.getQuarterOfYear(nextQuarter);
+        reward = cube.getReward(partner, year, quarter, links);
+        nextQuarter++;
+        return true;
+    }
+
+    public int getYear() {
+        return year;
+    }
+
+    public int getQuarter() {
+        return quarter;
+    }
+
+    public long getReward() {
+        return reward;
+    }
+
+    /**
+     * Function to write the remaining records, one "year quarter reward" line each
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Appendable out) throws IOException {
+        try {
+            while (next()) {
+                out.append(Integer.toString(year)).append(' ')
+                        .append(Integer.toString(quarter)).append(' ')
+                        .append(Long.toString(reward)).append('\n');
+            }
+        } finally {
+            Metrics.getInstance().recordQuery(Metrics.Query.ALL_REWARDS, startNanos);
+        }
+    }
+}
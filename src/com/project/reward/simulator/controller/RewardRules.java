@@ -0,0 +1,191 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.controller.Statistics.RewardLevel;
+import com.project.reward.simulator.data.Contract.ContractType;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Set of reward rules: the minimum active contracts of every level, the reward per contract of every level,
+ * the one-time bonus of a new contract by type and the years after which a contract expires.
+ * The default rules are the ones of Statistics; other rule sets are loaded from properties files:
+ *
+ *   name=generous
+ *   thresholds=1,10,50,200,1000    (Ant, Bee, Cat, Dog and Elephant)
+ *   rewards=5,7,9,12,15            (Ant, Bee, Cat, Dog and Elephant)
+ *   bonus.Rabbit=50
+ *   expiryYears=8
+ *
+ * Missing properties keep their default value. The rules are compiled into lookup tables: the level of
+ * every number of active contracts up to the highest threshold, and arrays by level and by contract type,
+ * so evaluating them doesn't branch on the rules.
+ */
+public final class RewardRules {
+
+    private static final RewardLevel[] LEVELS = RewardLevel.values();
+
+    private static final ContractType[] TYPES = ContractType.values();
+
+    // Keeps the level table small
+    private static final int MAX_THRESHOLD = 1 << 20;
+
+    private static final int MAX_EXPIRY_YEARS = 100;
+
+    static final RewardRules DEFAULT = createDefault();
+
+    private final String name;
+
+    private final int expiryYears;
+
+    // Level ordinal by number of active contracts, for fewer contracts than the highest threshold
+    private final byte[] levelTable;
+
+    private final long[] rewardByLevel;
+
+    private final long[] bonusByType;
+
+    private RewardRules(String name, long[] thresholds, long[] rewardByLevel, long[] bonusByType, int expiryYears) {
+        this.name = name;
+        this.rewardByLevel = rewardByLevel;
+        this.bonusByType = bonusByType;
+        this.expiryYears = expiryYears;
+        // thresholds[level] for every level but None, ascending
+        levelTable = new byte[(int) thresholds[LEVELS.length - 1]];
+        int level = 0;
+        for (int count = 0; count < levelTable.length; count++) {
+            while (count >= thresholds[level + 1]) {
+                level++;
+            }
+            levelTable[count] = (byte) level;
+        }
+    }
+
+    private static RewardRules createDefault() {
+        long[] thresholds = new long[LEVELS.length];
+        long[] rewards = new long[LEVELS.length];
+        for (RewardLevel level : LEVELS) {
+            thresholds[level.ordinal()] = level.getThreshold();
+            rewards[level.ordinal()] = level.getRewardPerContract();
+        }
+        long[] bonus = new long[TYPES.length];
+        bonus[ContractType.Rabbit.ordinal()] = Statistics.RABBIT_BONUS;
+        return new RewardRules("default", thresholds, rewards, bonus, Statistics.CONTRACT_REWARD_EXPIRY_TIME);
+    }
+
+    /**
+     * Function to load a rule set from a properties file
+     * @param filePath
+     * @return RewardRules
+     * @throws IOException
+     */
+    public static RewardRules load(String filePath) throws IOException {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            throw new IOException("File not found: " + filePath);
+        }
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            properties.load(reader);
+        }
+
+        String fileName = file.getName();
+        String name = properties.getProperty("name",
+                fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName);
+        long[] thresholds = Arrays.copyOf(DEFAULT.getThresholds(), LEVELS.length);
+        long[] rewards = Arrays.copyOf(DEFAULT.rewardByLevel, LEVELS.length);
+        long[] bonus = Arrays.copyOf(DEFAULT.bonusByType, TYPES.length);
+        int expiryYears = DEFAULT.expiryYears;
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+            try {
+                if (key.equals("name")) {
+                    continue;
+                } else if (key.equals("thresholds")) {
+                    parseLevels(value, thresholds);
+                } else if (key.equals("rewards")) {
+                    parseLevels(value, rewards);
+                } else if (key.equals("expiryYears")) {
+                    expiryYears = Integer.parseInt(value);
+                } else if (key.startsWith("bonus.")) {
+                    bonus[ContractType.valueOf(key.substring("bonus.".length())).ordinal()] = Long.parseLong(value);
+                } else {
+                    throw new IOException("Unknown property");
+                }
+            } catch (IllegalArgumentException | IOException ex) {
+                throw new IOException(String.format("Invalid property %s in %s: %s", key, filePath, ex.getMessage()), ex);
+            }
+        }
+
+        for (int level = 1; level < LEVELS.length; level++) {
+            if (thresholds[level] <= thresholds[level - 1]) {
+                throw new IOException("Thresholds must be positive and ascending in " + filePath);
+            }
+        }
+        if (thresholds[LEVELS.length - 1] > MAX_THRESHOLD) {
+            throw new IOException(String.format("Thresholds can't be higher than %d in %s", MAX_THRESHOLD, filePath));
+        }
+        if (expiryYears < 1 || expiryYears > MAX_EXPIRY_YEARS) {
+            throw new IOException(String.format("Expiry years must be between 1 and %d in %s", MAX_EXPIRY_YEARS, filePath));
+        }
+        return new RewardRules(name, thresholds, rewards, bonus, expiryYears);
+    }
+
+    /**
+     * Function to parse a value for every level but None
+     * @param value
+     * Comma separated values
+     * @param byLevel
+     * Receives the values, from Ant on
+     * @throws IOException
+     */
+    private static void parseLevels(String value, long[] byLevel) throws IOException {
+        String[] values = value.split(",");
+        if (values.length != LEVELS.length - 1) {
+            throw new IOException(String.format("Expected %d values, one per level from %s to %s",
+                    LEVELS.length - 1, LEVELS[1], LEVELS[LEVELS.length - 1]));
+        }
+        for (int i = 0; i < values.length; i++) {
+            byLevel[i + 1] = Long.parseLong(values[i].trim());
+        }
+    }
+
+    private long[] getThresholds() {
+        long[] thresholds = new long[LEVELS.length];
+        for (int count = levelTable.length - 1; count >= 0; count--) {
+            thresholds[levelTable[count]] = count;
+        }
+        thresholds[LEVELS.length - 1] = levelTable.length;
+        return thresholds;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int getExpiryYears() {
+        return expiryYears;
+    }
+
+    /**
+     * Function to get the level of a number of active contracts
+     * @param activeContracts
+     * @return int
+     * Level ordinal
+     */
+    int getLevelOrdinal(long activeContracts) {
+        return activeContracts < levelTable.length ? levelTable[(int) activeContracts] : LEVELS.length - 1;
+    }
+
+    long getRewardPerContract(int level) {
+        return rewardByLevel[level];
+    }
+
+    long getBonus(int type) {
+        return bonusByType[type];
+    }
+}
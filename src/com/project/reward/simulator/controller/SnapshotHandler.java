@@ -0,0 +1,214 @@
+package com.project.reward.simulator.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of all the partners and contracts, so a restart doesn't have to replay the
+ * registrations and re-parse the csv files.
+ *
+ * Layout (big-endian), every column is written as one block so it can be memory-mapped and copied
+ * into the store arrays in bulk:
+ * <pre>
+ *   int magic, int version, int partner count (P), int contract count (C)
+ *   long[P] partner ids, int[P] parent partner index (-1 for root partners)
+ *   long[C] contract ids, int[C] partner index, int[C] start epoch-day, int[C] end epoch-day,
+ *   byte[C] contract type
+ * </pre>
+ */
+public class SnapshotHandler {
+
+    private static final int MAGIC = 0x52575353; // "RWSS"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final SnapshotHandler instance = new SnapshotHandler();
+
+    private SnapshotHandler() {
+    }
+
+    public static SnapshotHandler getInstance() {
+        return instance;
+    }
+
+    /**
+     * Function to write all the partners and contracts to a snapshot file.
+     * The snapshot is written next to the target and moved over it, so a failed write never
+     * leaves a broken snapshot behind.
+     * @param snapshotFilePath
+     * @throws IOException
+     */
+    public void saveSnapshot(String snapshotFilePath) throws IOException {
+        // Changes wait for the snapshot, queries don't
+        QueryView.lockWriter();
+        try {
+            writeSnapshot(snapshotFilePath);
+        } finally {
+            QueryView.unlockWriter();
+        }
+    }
+
+    private void writeSnapshot(String snapshotFilePath) throws IOException {
+        PartnerHandler partnerHandler = PartnerHandler.getInstance();
+        ContractStore store = ContractHandler.getInstance().getStore();
+        int partnerCount = partnerHandler.getPartnerCount();
+        int contractCount = store.size();
+
+        Path target = new File(snapshotFilePath).toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(partnerCount).putInt(contractCount);
+
+            long[] partnerIds = partnerHandler.getPartnerIds();
+            int[] parentIndexes = partnerHandler.getParentIndexes();
+            for (int i = 0; i < partnerCount; i++) {
+                ensureRemaining(channel, buffer, Long.BYTES);
+                buffer.putLong(partnerIds[i]);
+            }
+            for (int i = 0; i < partnerCount; i++) {
+                ensureRemaining(channel, buffer, Integer.BYTES);
+                buffer.putInt(parentIndexes[i]);
+            }
+
+            for (int slot = 0; slot < contractCount; slot++) {
+                ensureRemaining(channel, buffer, Long.BYTES);
+                buffer.putLong(store.getId(slot));
+            }
+            for (int slot = 0; slot < contractCount; slot++) {
+                ensureRemaining(channel, buffer, Integer.BYTES);
+                buffer.putInt(store.getPartner(slot));
+            }
+            for (int slot = 0; slot < contractCount; slot++) {
+                ensureRemaining(channel, buffer, Integer.BYTES);
+                buffer.putInt(store.getStartDay(slot));
+            }
+            for (int slot = 0; slot < contractCount; slot++) {
+                ensureRemaining(channel, buffer, Integer.BYTES);
+                buffer.putInt(store.getEndDay(slot));
+            }
+            for (int slot = 0; slot < contractCount; slot++) {
+                ensureRemaining(channel, buffer, Byte.BYTES);
+                buffer.put(store.getTypeOrdinal(slot));
+            }
+            flush(channel, buffer);
+            channel.force(false);
+        } catch (IOException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Function to replace all the partners and contracts by the content of a snapshot file.
+     * The whole snapshot is read and validated before anything is replaced.
+     * @param snapshotFilePath
+     * @throws Exception
+     */
+    public void restoreSnapshot(String snapshotFilePath) throws Exception {
+        File file = new File(snapshotFilePath);
+        if (!file.exists()) {
+            throw new IOException("File not found: " + snapshotFilePath);
+        }
+
+        long[] partnerIds, contractIds;
+        int[] parents, partners, startDays, endDays;
+        byte[] types;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Not a snapshot file: " + snapshotFilePath);
+            }
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + snapshotFilePath);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            int partnerCount = header.getInt();
+            int contractCount = header.getInt();
+            long expectedSize = HEADER_SIZE
+                    + (long) partnerCount * (Long.BYTES + Integer.BYTES)
+                    + (long) contractCount * (Long.BYTES + 3 * Integer.BYTES + Byte.BYTES);
+            if (partnerCount < 0 || contractCount < 0 || fileSize != expectedSize) {
+                throw new IOException("Snapshot file is corrupted: " + snapshotFilePath);
+            }
+
+            long offset = HEADER_SIZE;
+            partnerIds = new long[partnerCount];
+            map(channel, offset, (long) partnerCount * Long.BYTES).asLongBuffer().get(partnerIds);
+            offset += (long) partnerCount * Long.BYTES;
+            parents = new int[partnerCount];
+            map(channel, offset, (long) partnerCount * Integer.BYTES).asIntBuffer().get(parents);
+            offset += (long) partnerCount * Integer.BYTES;
+
+            contractIds = new long[contractCount];
+            map(channel, offset, (long) contractCount * Long.BYTES).asLongBuffer().get(contractIds);
+            offset += (long) contractCount * Long.BYTES;
+            partners = new int[contractCount];
+            map(channel, offset, (long) contractCount * Integer.BYTES).asIntBuffer().get(partners);
+            offset += (long) contractCount * Integer.BYTES;
+            startDays = new int[contractCount];
+            map(channel, offset, (long) contractCount * Integer.BYTES).asIntBuffer().get(startDays);
+            offset += (long) contractCount * Integer.BYTES;
+            endDays = new int[contractCount];
+            map(channel, offset, (long) contractCount * Integer.BYTES).asIntBuffer().get(endDays);
+            offset += (long) contractCount * Integer.BYTES;
+            types = new byte[contractCount];
+            map(channel, offset, contractCount).get(types);
+        }
+
+        for (int slot = 0; slot < partners.length; slot++) {
+            if (partners[slot] < 0 || partners[slot] >= partnerIds.length) {
+                throw new IOException("Partner not found for contract id: " + contractIds[slot]);
+            }
+        }
+        ContractStore store = new ContractStore(contractIds, partners, types, startDays, endDays);
+
+        QueryView.lockWriter();
+        try {
+            PartnerHandler.getInstance().restore(partnerIds, parents);
+            ContractHandler.getInstance().restore(store);
+            Statistics.onDataRestored();
+            JournalHandler.getInstance().onDataRestored();
+        } finally {
+            QueryView.unlockWriter();
+        }
+    }
+
+    private MappedByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+}
@@ -1,31 +1,43 @@
 package com.project.reward.simulator.controller;
 
-import com.project.reward.simulator.data.Contract;
+import com.project.reward.simulator.data.Partner;
 
-import java.time.LocalDate;
-import java.time.temporal.IsoFields;
 import java.util.*;
 
 public class Statistics {
 
-    private static final Integer CONTRACT_REWARD_EXPIRY_TIME = 8; // Reward for contract will expire x years after start date
+    static final Integer CONTRACT_REWARD_EXPIRY_TIME = 8; // Reward for contract will expire x years after start date
 
-    private static final Integer RABBIT_BONUS = 50;
+    static final Integer RABBIT_BONUS = 50;
 
-    private enum RewardLevel {
-        None(0), Ant(5), Bee(7), Cat(9), Dog(12), Elephant(15);
+    // Cube of all rewards, built for a view by the first ALL_REWARDS and kept up to date by the writer
+    // afterwards, see QueryView
+    private static RewardCube rewardCube;
+
+    enum RewardLevel {
+        None(0, 0), Ant(1, 5), Bee(10, 7), Cat(50, 9), Dog(200, 12), Elephant(1000, 15);
+
+        // Minimum number of active contracts
+        private final Integer threshold;
 
         private final Integer rewardPerContract;
 
-        RewardLevel(Integer reward) {
+        RewardLevel(Integer threshold, Integer reward) {
+            this.threshold = threshold;
             this.rewardPerContract = reward;
         }
 
+        public Integer getThreshold() {
+            return this.threshold;
+        }
+
         public Integer getRewardPerContract() {
             return this.rewardPerContract;
         }
     }
 
+    private static final RewardLevel[] LEVELS = RewardLevel.values();
+
     /**
      * Function to get partner level based on number of active contracts
      * @param numOfContracts
@@ -33,59 +45,59 @@ public class Statistics {
      * @return RewardLevel
      * Reward level
      */
-    private static RewardLevel getLevel(long numOfContracts) {
-        if (numOfContracts >= 1000) {
-            return RewardLevel.Elephant;
-        } else if (numOfContracts >= 200) {
-            return RewardLevel.Dog;
-        } else if (numOfContracts >= 50) {
-            return RewardLevel.Cat;
-        } else if (numOfContracts >= 10) {
-            return RewardLevel.Bee;
-        } else if (numOfContracts >= 1) {
-            return RewardLevel.Ant;
-        } else {
-            return RewardLevel.None;
-        }
-    }
-
-    /***
-     * Recursive function to find all the eligible partner ids to be included in
-     * calculation (meaning partner itself and all its sub-partners)
-     * @param parentId
-     * Id of the parent partner (root in the tree)
-     * @return List<Long>
-     */
-    private static List<Long> getEligiblePartnerIds(Long parentId) {
-        List<Long> eligiblePartnerIds = new ArrayList<>(Collections.singletonList(parentId));
-        Arrays.stream(
-                PartnerHandler.getInstance().getPartners().get(parentId).getChildren()
-        ).forEach(c -> {
-            eligiblePartnerIds.addAll(getEligiblePartnerIds(c.getId()));
-        });
-        return eligiblePartnerIds;
-    }
-
-    /**
-     * Function to get all the active contracts for the given partnerIds.
-     * Active means non-ended non-expired contracts.
-     * @param partnerIds
+    static RewardLevel getLevel(long numOfContracts) {
+        return LEVELS[RewardRules.DEFAULT.getLevelOrdinal(numOfContracts)];
+    }
+
+    /**
+     * Function to get the first day of the validity window for the given year and quarter.
+     * Contracts started before this date are expired.
      * @param year
      * @param quarter
-     * @return Contract[]
+     * @return int
+     * Epoch-day
+     */
+    static int getValidFrom(Integer year, Integer quarter) {
+        return EpochDays.firstDayOfQuarter((year - CONTRACT_REWARD_EXPIRY_TIME) * 4 + quarter - 1);
+    }
+
+    /**
+     * Function to get the last day of the given year and quarter
+     * @param year
+     * @param quarter
+     * @return int
+     * Epoch-day
+     */
+    static int getValidTo(Integer year, Integer quarter) {
+        return EpochDays.lastDayOfQuarter(year * 4 + quarter - 1);
+    }
+
+    /**
+     * Function to count the active contracts in the sub-tree of the given partner, without collecting them
+     * @param view
+     * @param partner
+     * Partner index
+     * @param year
+     * @param quarter
+     * @return long
      */
-    private static Contract[] getActiveContracts(List<Long> partnerIds, Integer year, Integer quarter) {
-        LocalDate validFrom = LocalDate.of(year - CONTRACT_REWARD_EXPIRY_TIME, 3 * quarter - 2, 1);
-        LocalDate initial = LocalDate.of(year, 3 * quarter, 1);
-        LocalDate validTo = initial.withDayOfMonth(initial.lengthOfMonth());
+    private static long countActiveContracts(QueryView view, int partner, Integer year, Integer quarter) {
+        int validFrom = getValidFrom(year, quarter);
+        int validTo = getValidTo(year, quarter);
 
-        return ContractHandler.getInstance().getContractsById().values()
-                .stream()
-                .filter(c -> partnerIds.contains(c.getPartner().getId())
-                        && c.getStartDate().isAfter(validFrom)
-                        && c.getStartDate().isBefore(validTo)
-                        && (Objects.isNull(c.getEndDate()) || c.getEndDate().isAfter(validTo))
-                ).toArray(Contract[]::new);
+        ContractIndex index = view.getIndex();
+        PartnerLinks links = view.getLinks();
+        int[] counts = new int[4];
+        long count = 0, scanned = 0;
+        int visited = 0;
+        for (int p = partner; p >= 0; p = links.getNextInSubtree(partner, p)) {
+            index.countActive(p, validFrom, validTo, counts);
+            count += counts[0];
+            scanned += counts[3];
+            visited++;
+        }
+        Metrics.getInstance().recordScan(scanned, visited);
+        return count;
     }
 
     /**
@@ -97,14 +109,54 @@ public class Statistics {
      * @throws Exception
      */
     public static String getPartnerLevel(Long partnerId, Integer year, Integer quarter) throws Exception {
-        if (!PartnerHandler.getInstance().getPartners().containsKey(partnerId)) {
-            throw new Exception("Partner id not found: " + partnerId);
+        return getPartnerLevel(QueryView.current(), partnerId, year, quarter);
+    }
+
+    /**
+     * Function to get the partner level for given partner in a specific year and quarter, in the given view
+     * @param view
+     * @param partnerId
+     * @param year
+     * @param quarter
+     * @return String
+     * @throws Exception
+     */
+    public static String getPartnerLevel(QueryView view, Long partnerId, Integer year, Integer quarter) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return (String) QueryCache.getInstance().get(view, partnerId, year, quarter, QueryCache.Kind.LEVEL,
+                    () -> calculatePartnerLevel(view, partnerId, year, quarter));
+        } finally {
+            Metrics.getInstance().recordQuery(Metrics.Query.LEVEL, start);
         }
-        List<Long> eligiblePartnerIds = getEligiblePartnerIds(partnerId);
-        long count = getActiveContracts(eligiblePartnerIds, year, quarter).length;
+    }
+
+    private static String calculatePartnerLevel(QueryView view, Long partnerId, Integer year, Integer quarter)
+            throws Exception {
+        int partner = getPartnerIndex(view, partnerId);
+        RewardCube cube = view.getBuiltRewardCube();
+        if (Objects.nonNull(cube)) {
+            return getLevel(cube.getActiveCount(partner, year, quarter)).name();
+        }
+        long count = countActiveContracts(view, partner, year, quarter);
         return getLevel(count).name();
     }
 
+    /**
+     * Function to get the index of a partner in a view
+     * @param view
+     * @param partnerId
+     * @return int
+     * @throws Exception
+     */
+    private static int getPartnerIndex(QueryView view, Long partnerId) throws Exception {
+        int partner = view.getLinks().getIndex(partnerId);
+        if (partner < 0) {
+            throw new Exception("Partner id not found: " + partnerId);
+        }
+        return partner;
+    }
+
     /**
      * Function to get total reward for a given partner in a given year and quarter
      * @param partnerId
@@ -114,47 +166,191 @@ public class Statistics {
      * @throws Exception
      */
     public static long getPartnerReward(Long partnerId, Integer year, Integer quarter) throws Exception {
-        if (!PartnerHandler.getInstance().getPartners().containsKey(partnerId)) {
-            throw new Exception("Partner id not found: " + partnerId);
+        return getPartnerReward(QueryView.current(), partnerId, year, quarter);
+    }
+
+    /**
+     * Function to get total reward for a given partner in a given year and quarter, in the given view
+     * @param view
+     * @param partnerId
+     * @param year
+     * @param quarter
+     * @return long
+     * @throws Exception
+     */
+    public static long getPartnerReward(QueryView view, Long partnerId, Integer year, Integer quarter) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return (Long) QueryCache.getInstance().get(view, partnerId, year, quarter, QueryCache.Kind.REWARD,
+                    () -> calculatePartnerReward(view, partnerId, year, quarter));
+        } finally {
+            Metrics.getInstance().recordQuery(Metrics.Query.REWARDS, start);
         }
-        long reward = 0;
-
-        // Find the level of the partner
-        List<Long> eligiblePartnerIds = getEligiblePartnerIds(partnerId);
-        Contract[] activeContracts = getActiveContracts(eligiblePartnerIds, year, quarter);
-        RewardLevel partnerLevel = getLevel(activeContracts.length);
-
-        // Sum-up reward for direct contracts (made by partner itself and in the same quarter)
-        Contract[] directContracts = Arrays.stream(activeContracts)
-                .filter(c -> c.getStartDate().get(IsoFields.QUARTER_OF_YEAR) == quarter
-                        && c.getPartner().getId().equals(partnerId))
-                .toArray(Contract[]::new);
-        reward += directContracts.length * partnerLevel.getRewardPerContract();
-
-        // Sum-up one-time bonus for new rabit contracts
-        long numOfNewDirectRabbitContracts = Arrays.stream(directContracts)
-                .filter(c -> c.getStartDate().getYear() == year
-                        && c.getType().equals(Contract.ContractType.Rabbit))
-                .count();
-        reward += numOfNewDirectRabbitContracts * RABBIT_BONUS;
-
-        // Sum-up reward for all the children
-        reward += Arrays.stream(PartnerHandler.getInstance().getPartners().get(partnerId).getChildren())
-                .mapToLong(p -> {
-                    Contract[] activeContractsForChild = getActiveContracts(getEligiblePartnerIds(p.getId()), year, quarter);
-                    RewardLevel childLevel = getLevel(activeContractsForChild.length);
-
-                    Contract[] directChildContracts = Arrays.stream(activeContractsForChild)
-                            .filter(c -> c.getStartDate().get(IsoFields.QUARTER_OF_YEAR) == quarter
-                                    && c.getPartner().getId().equals(p.getId()))
-                            .toArray(Contract[]::new);
-                    long rewardDifference = partnerLevel.getRewardPerContract() - childLevel.getRewardPerContract();
-                    return directChildContracts.length * rewardDifference;
-                }).sum();
+    }
+
+    private static long calculatePartnerReward(QueryView view, Long partnerId, Integer year, Integer quarter)
+            throws Exception {
+        int partner = getPartnerIndex(view, partnerId);
+        RewardCube cube = view.getBuiltRewardCube();
+        if (Objects.nonNull(cube)) {
+            return cube.getReward(partner, year, quarter, view.getLinks());
+        }
+        return evaluateReward(view, partner, year, quarter);
+    }
+
+    /**
+     * Function to calculate the reward of a partner in one pass over the contracts of its sub-tree.
+     * The sub-tree of every child is walked on its own, so the active contracts are counted
+     * per child while the total gives the level of the partner.
+     * @param view
+     * @param partner
+     * Partner index
+     * @param year
+     * @param quarter
+     * @return long
+     */
+    private static long evaluateReward(QueryView view, int partner, int year, int quarter) {
+        int validFrom = getValidFrom(year, quarter);
+        int validTo = getValidTo(year, quarter);
+        int quarterOfYear = quarter - 1;
+        ContractIndex index = view.getIndex();
+        PartnerLinks links = view.getLinks();
+        int[] counts = new int[4];
 
+        // Contracts of the partner itself
+        index.countActive(partner, validFrom, validTo, quarterOfYear, year, counts);
+        long scanned = counts[3];
+        long activeContracts = counts[0];
+        long directContracts = counts[1];
+        long newDirectRabbitContracts = counts[2];
+        int visited = 1;
+
+        // Direct contracts of the children, in total and weighted by the reward of the child's level
+        long directChildContracts = 0, directChildRewards = 0;
+        for (int child = links.getFirstChild(partner); child >= 0; child = links.getNextSibling(child)) {
+            index.countActive(child, validFrom, validTo, quarterOfYear, year, counts);
+            long activeForChild = counts[0];
+            long directForChild = counts[1];
+            scanned += counts[3];
+            visited++;
+            for (int p = links.getNextInSubtree(child, child); p >= 0; p = links.getNextInSubtree(child, p)) {
+                index.countActive(p, validFrom, validTo, counts);
+                activeForChild += counts[0];
+                scanned += counts[3];
+                visited++;
+            }
+            activeContracts += activeForChild;
+            directChildContracts += directForChild;
+            directChildRewards += directForChild * getLevel(activeForChild).getRewardPerContract();
+        }
+
+        RewardLevel partnerLevel = getLevel(activeContracts);
+        long reward = directContracts * partnerLevel.getRewardPerContract();
+        // One-time bonus for new rabbit contracts
+        reward += newDirectRabbitContracts * RABBIT_BONUS;
+        // Every child gets the difference between its own level and the partner's level
+        reward += directChildContracts * partnerLevel.getRewardPerContract() - directChildRewards;
+        Metrics.getInstance().recordScan(scanned, visited);
         return reward;
     }
 
+    /**
+     * Function to adopt the reward cube built for the current view, when the writer doesn't have one yet
+     * @param current
+     * The current view, which has the same data as the writer
+     */
+    static void onWriterLocked(QueryView current) {
+        if (Objects.isNull(rewardCube) && Objects.nonNull(current.getBuiltRewardCube())) {
+            rewardCube = current.getBuiltRewardCube().copyForWriter();
+        }
+    }
+
+    /**
+     * Function to get a read-only copy of the reward cube of the writer, for a new view
+     * @return RewardCube
+     * null if the writer doesn't have a reward cube
+     */
+    static RewardCube snapshotRewardCube() {
+        return Objects.isNull(rewardCube) ? null : rewardCube.snapshot();
+    }
+
+    /**
+     * Function to drop the reward cube after all the data is replaced, e.g. by a restored snapshot
+     */
+    static void onDataRestored() {
+        // The next query which needs the reward cube builds it again
+        rewardCube = null;
+        QueryCache.getInstance().clear();
+    }
+
+    /**
+     * Function to update the reward cube (if it's built) for a newly registered partner
+     * @param partner
+     */
+    static void onPartnerRegistered(Partner partner) {
+        // The sub-trees of all the ancestors changed
+        QueryCache.getInstance().invalidate(
+                Objects.isNull(partner.getParent()) ? -1 : partner.getParent().getIndex(),
+                Integer.MIN_VALUE, Integer.MAX_VALUE);
+        if (Objects.nonNull(rewardCube)) {
+            rewardCube.addPartner(partner.getIndex(),
+                    Objects.isNull(partner.getParent()) ? -1 : partner.getParent().getIndex());
+        }
+    }
+
+    /**
+     * Function to update the reward cube (if it's built) for a newly added contract
+     * @param slot
+     */
+    static void onContractAdded(int slot) {
+        ContractStore store = ContractHandler.getInstance().getStore();
+        QueryCache.getInstance().invalidate(store.getPartner(slot),
+                RewardCube.firstActiveQuarter(store.getStartDay(slot)),
+                RewardCube.lastActiveQuarter(store.getStartDay(slot), store.getEndDay(slot)));
+        if (Objects.nonNull(rewardCube)) {
+            rewardCube.apply(store.getPartner(slot), store.getType(slot),
+                    store.getStartDay(slot), store.getEndDay(slot), 1);
+        }
+    }
+
+    /**
+     * Function to update the reward cube (if it's built) for the contracts in a range of new slots,
+     * e.g. the ones added by a round of a partitioned load
+     * @param fromSlot
+     * @param toSlot
+     * Exclusive
+     */
+    static void onContractsAdded(int fromSlot, int toSlot) {
+        if (Objects.isNull(rewardCube) && QueryCache.getInstance().isEmpty()) {
+            // Nothing to update, but results of the older views must not be added anymore
+            QueryCache.getInstance().clear();
+            return;
+        }
+        for (int slot = fromSlot; slot < toSlot; slot++) {
+            onContractAdded(slot);
+        }
+    }
+
+    /**
+     * Function to update the reward cube (if it's built) for a contract which is about to be ended
+     * @param slot
+     * The contract before setting its end day
+     * @param endDay
+     */
+    static void onContractEnded(int slot, int endDay) {
+        ContractStore store = ContractHandler.getInstance().getStore();
+        // Only the quarters between the new and the old end change
+        QueryCache.getInstance().invalidate(store.getPartner(slot),
+                RewardCube.lastActiveQuarter(store.getStartDay(slot), endDay) + 1,
+                RewardCube.lastActiveQuarter(store.getStartDay(slot), store.getEndDay(slot)));
+        if (Objects.nonNull(rewardCube)) {
+            rewardCube.apply(store.getPartner(slot), store.getType(slot),
+                    store.getStartDay(slot), store.getEndDay(slot), -1);
+            rewardCube.apply(store.getPartner(slot), store.getType(slot),
+                    store.getStartDay(slot), endDay, 1);
+        }
+    }
+
     /**
      * Function to get the reward for a given partner id, for all possible years and quarters
      * @param partnerId
@@ -163,29 +359,179 @@ public class Statistics {
      * @throws Exception
      */
     public static String getPartnerAllReward(Long partnerId) throws Exception {
+        return getPartnerAllReward(QueryView.current(), partnerId);
+    }
+
+    /**
+     * Function to get the reward for a given partner id, for all possible years and quarters, in the given view
+     * @param view
+     * @param partnerId
+     * @return String
+     * Contains all the possible rewards, line by line
+     * @throws Exception
+     */
+    public static String getPartnerAllReward(QueryView view, Long partnerId) throws Exception {
         StringBuilder res = new StringBuilder();
+        streamPartnerAllReward(view, partnerId).writeTo(res);
+        return res.toString();
+    }
+
+    /**
+     * Function to get the reward for a given partner id, for all possible years and quarters from the first one
+     * in which the partner can get a reward, in the given view. The rewards are only calculated while they are
+     * read, so nothing is collected in memory and the first one is available right away.
+     * @param view
+     * @param partnerId
+     * @return RewardRecords
+     * @throws Exception
+     */
+    public static RewardRecords streamPartnerAllReward(QueryView view, Long partnerId) throws Exception {
+        long start = System.nanoTime();
+        try {
+            // We want to show the reward for all years and quarters between the first and the last contract,
+            // all of them are already calculated in the reward cube.
+            RewardCube cube = view.getRewardCube();
+            if (cube.isEmpty()) {
+                return new RewardRecords(cube, view.getLinks(), -1, 0, -1, start);
+            }
+            int partner = getPartnerIndex(view, partnerId);
+            PartnerLinks links = view.getLinks();
+            ContractIndex index = view.getIndex();
+
+            // A reward only comes from the partner's own contracts and the ones of its children,
+            // so there is none before the first of them
+            int firstStartDay = index.getFirstStartDay(partner);
+            for (int child = links.getFirstChild(partner); child >= 0; child = links.getNextSibling(child)) {
+                firstStartDay = Math.min(firstStartDay, index.getFirstStartDay(child));
+            }
+            int lastQuarter = firstStartDay == Integer.MAX_VALUE ? -1 : cube.getLastYear() * 4 + 3;
+            int firstQuarter = firstStartDay == Integer.MAX_VALUE
+                    ? 0 : Math.max(cube.getFirstYear() * 4, EpochDays.quarterOrdinal(firstStartDay));
+            return new RewardRecords(cube, links, partner, firstQuarter, lastQuarter, start);
+        } catch (Exception ex) {
+            Metrics.getInstance().recordQuery(Metrics.Query.ALL_REWARDS, start);
+            throw ex;
+        }
+    }
+
+    /**
+     * Function to get the level changes of a given partner id over all the quarters
+     * @param partnerId
+     * @return String
+     * Contains "year quarter level" for every quarter in which the level changes, line by line
+     * @throws Exception
+     */
+    public static String getPartnerLevelHistory(Long partnerId) throws Exception {
+        return getPartnerLevelHistory(QueryView.current(), partnerId);
+    }
 
-        // We want to show the reward for all years and quarters, so we need to sort all the contracts
-        // based on create date and pick the first and last one to have a more accurate range.
-        Contract[] allContracts = ContractHandler.getInstance().getContractsById().values()
-                .stream()
-                .sorted(Comparator.comparing(Contract::getStartDate))
-                .toArray(Contract[]::new);
-        if (allContracts.length == 0) {
+    /**
+     * Function to get the level changes of a given partner id over all the quarters, in the given view
+     * @param view
+     * @param partnerId
+     * @return String
+     * Contains "year quarter level" for every quarter in which the level changes, line by line
+     * @throws Exception
+     */
+    public static String getPartnerLevelHistory(QueryView view, Long partnerId) throws Exception {
+        long start = System.nanoTime();
+        try {
+            StringBuilder res = new StringBuilder();
+            LevelHistory.build(view, getPartnerIndex(view, partnerId)).appendChanges(res);
             return res.toString();
+        } finally {
+            Metrics.getInstance().recordQuery(Metrics.Query.LEVEL_HISTORY, start);
         }
-        LocalDate start = allContracts[0].getStartDate();
-        LocalDate end = allContracts[allContracts.length - 1].getStartDate();
+    }
 
-        // Show reward for all the possible quarters in our year range
-        for(int year = start.getYear() ; year <= end.getYear() ; year++) {
-            for (int quarter = 1 ; quarter <= 4 ; quarter++) {
-                long r = getPartnerReward(partnerId, year, quarter);
-                res.append(String.format("%d %d %d\n", year, quarter, r));
+    /**
+     * Function to get the level of a given partner id in the first quarter of a range and its changes
+     * in the range, in the given view
+     * @param view
+     * @param partnerId
+     * @param fromYear
+     * @param fromQuarter
+     * @param toYear
+     * @param toQuarter
+     * Inclusive
+     * @return String
+     * Contains "year quarter level" for the first quarter and every quarter in which the level changes, line by line
+     * @throws Exception
+     */
+    public static String getPartnerLevelHistory(QueryView view, Long partnerId, Integer fromYear, Integer fromQuarter,
+                                                Integer toYear, Integer toQuarter) throws Exception {
+        long start = System.nanoTime();
+        try {
+            int from = fromYear * 4 + fromQuarter - 1;
+            int to = toYear * 4 + toQuarter - 1;
+            if (from > to) {
+                throw new Exception("Range ends before it starts: " + fromYear + " " + fromQuarter);
             }
+            StringBuilder res = new StringBuilder();
+            LevelHistory.build(view, getPartnerIndex(view, partnerId)).appendChanges(res, from, to);
+            return res.toString();
+        } finally {
+            Metrics.getInstance().recordQuery(Metrics.Query.LEVEL_HISTORY, start);
         }
+    }
 
-        return res.toString();
+    /**
+     * Function to write the level and reward of all the partners in a given year and quarter to a csv file
+     * @param year
+     * @param quarter
+     * @param filePath
+     * @return int
+     * Number of partners
+     * @throws Exception
+     */
+    public static int writeAllPartnersRewards(Integer year, Integer quarter, String filePath) throws Exception {
+        return writeAllPartnersRewards(QueryView.current(), year, quarter, filePath);
+    }
+
+    /**
+     * Function to write the level and reward of all the partners in a given year and quarter to a csv file,
+     * in the given view. Calculated in one pass over the partner tree, see {@link AllPartnersRewards}.
+     * @param view
+     * @param year
+     * @param quarter
+     * @param filePath
+     * @return int
+     * Number of partners
+     * @throws Exception
+     */
+    public static int writeAllPartnersRewards(QueryView view, Integer year, Integer quarter, String filePath)
+            throws Exception {
+        long start = System.nanoTime();
+        try {
+            return AllPartnersRewards.write(view, year, quarter, filePath);
+        } finally {
+            Metrics.getInstance().recordQuery(Metrics.Query.ALL_PARTNERS_REWARDS, start);
+        }
+    }
+
+    /**
+     * Function to write the level and reward of all the partners in a given year and quarter under several
+     * rule sets to a csv file. Calculated in one pass over the partner tree, see {@link WhatIf}.
+     * The level and reward queries keep using the default rules.
+     * @param year
+     * @param quarter
+     * @param rules
+     * @param filePath
+     * @return String
+     * Total reward and number of partners per level of every rule set
+     * @throws Exception
+     */
+    public static String writeWhatIf(Integer year, Integer quarter, List<RewardRules> rules, String filePath)
+            throws Exception {
+        if (rules.isEmpty()) {
+            throw new Exception("No rule sets given");
+        }
+        long start = System.nanoTime();
+        try {
+            return WhatIf.write(QueryView.current(), year, quarter, rules, filePath);
+        } finally {
+            Metrics.getInstance().recordQuery(Metrics.Query.WHAT_IF, start);
+        }
     }
 
 }
@@ -0,0 +1,193 @@
+package com.project.reward.simulator.controller;
+
+import com.project.reward.simulator.controller.Statistics.RewardLevel;
+import com.project.reward.simulator.data.Contract.ContractType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Level and reward of every partner for one quarter under several rule sets, calculated in one
+ * bottom-up pass over the tree, like {@link AllPartnersRewards}.
+ *
+ * The rule sets only differ in their validity windows by their expiry, and all the windows end with
+ * the quarter, so the contracts of a partner are looked at once for all of them (see
+ * {@link ContractIndex#countActive(int, int[], int, int, int, int[], int[], int[])}).
+ * The counts of every partner are kept per rule set, next to each other, and every rule set is then
+ * evaluated with its compiled tables.
+ */
+final class WhatIf {
+
+    private static final RewardLevel[] LEVELS = RewardLevel.values();
+
+    private static final int NUM_TYPES = ContractType.values().length;
+
+    // Shared by all the tasks of a run, every task only writes the positions of its sub-tree
+    private static final class Run {
+
+        private final ContractIndex index;
+
+        private final PartnerTree tree;
+
+        // Rule sets by descending expiry, so their windows are ascending by validFrom
+        private final RewardRules[] rules;
+
+        private final int[] validFroms;
+
+        private final int validTo;
+
+        private final int quarterOfYear;
+
+        private final int year;
+
+        // By position and rule set, at position * rules.length + rule set: active contracts in the
+        // sub-tree, direct contracts, level ordinal and reward
+        private final long[] activeCounts;
+
+        private final long[] directCounts;
+
+        private final byte[] levels;
+
+        private final long[] rewards;
+
+        private Run(QueryView view, int year, int quarter, List<RewardRules> rules) {
+            this.index = view.getIndex();
+            this.tree = view.getTree();
+            this.rules = rules.toArray(new RewardRules[0]);
+            Arrays.sort(this.rules, Comparator.comparingInt(RewardRules::getExpiryYears).reversed());
+            this.validFroms = new int[this.rules.length];
+            for (int r = 0; r < this.rules.length; r++) {
+                validFroms[r] = EpochDays.firstDayOfQuarter((year - this.rules[r].getExpiryYears()) * 4 + quarter - 1);
+            }
+            this.validTo = Statistics.getValidTo(year, quarter);
+            this.quarterOfYear = quarter - 1;
+            this.year = year;
+            int size = tree.size() * this.rules.length;
+            activeCounts = new long[size];
+            directCounts = new long[size];
+            levels = new byte[size];
+            rewards = new long[size];
+        }
+
+        /**
+         * Function to finish a partner whose children are all finished, under every rule set
+         * @param position
+         * @param active
+         * @param direct
+         * @param newByType
+         * Buffers for ContractIndex.countActive
+         * @return long
+         * Number of contracts looked at
+         */
+        private long finish(int position, int[] active, int[] direct, int[] newByType) {
+            int numRules = rules.length;
+            long scanned = index.countActive(tree.getPartnerIndex(position), validFroms, validTo, quarterOfYear, year,
+                    active, direct, newByType);
+            int at = position * numRules;
+            for (int r = 0; r < numRules; r++) {
+                RewardRules ruleSet = rules[r];
+                long subtreeActive = active[r];
+                long directChildContracts = 0, directChildRewards = 0;
+                for (int child = tree.getFirstChild(position); child < tree.getSubtreeEnd(position);
+                     child = tree.getNextSibling(child)) {
+                    int childAt = child * numRules + r;
+                    subtreeActive += activeCounts[childAt];
+                    directChildContracts += directCounts[childAt];
+                    directChildRewards += directCounts[childAt] * ruleSet.getRewardPerContract(levels[childAt]);
+                }
+                int level = ruleSet.getLevelOrdinal(subtreeActive);
+                long rate = ruleSet.getRewardPerContract(level);
+                long reward = direct[r] * rate + directChildContracts * rate - directChildRewards;
+                for (int type = 0; type < NUM_TYPES; type++) {
+                    reward += newByType[type] * ruleSet.getBonus(type);
+                }
+                activeCounts[at + r] = subtreeActive;
+                directCounts[at + r] = direct[r];
+                levels[at + r] = (byte) level;
+                rewards[at + r] = reward;
+            }
+            return scanned;
+        }
+    }
+
+    private WhatIf() {
+    }
+
+    /**
+     * Function to calculate the level and reward of all the partners of a view under every rule set and
+     * write them to a csv file (partnerId, then <name>.level,<name>.reward per rule set) in registration order
+     * @param view
+     * @param year
+     * @param quarter
+     * @param rules
+     * @param filePath
+     * @return String
+     * Total reward and number of partners per level of every rule set, one line each
+     * @throws IOException
+     */
+    static String write(QueryView view, int year, int quarter, List<RewardRules> rules, String filePath)
+            throws IOException {
+        Run run = new Run(view, year, quarter, rules);
+        PartnerTree tree = run.tree;
+        int n = tree.size();
+        int numRules = rules.size();
+        long scanned = BottomUpPass.run(tree, () -> {
+            int[] active = new int[numRules];
+            int[] direct = new int[numRules];
+            int[] newByType = new int[NUM_TYPES];
+            return position -> run.finish(position, active, direct, newByType);
+        });
+        Metrics.getInstance().recordScan(scanned, n);
+
+        // Columns in the given order
+        int[] columns = new int[numRules];
+        for (int r = 0; r < numRules; r++) {
+            for (int s = 0; s < numRules; s++) {
+                if (run.rules[s] == rules.get(r)) {
+                    columns[r] = s;
+                }
+            }
+        }
+        long[] totals = new long[numRules];
+        int[][] levelCounts = new int[numRules][LEVELS.length];
+
+        AtomicFile.write(filePath, out -> {
+            out.write("partnerId");
+            for (RewardRules ruleSet : rules) {
+                out.write(',');
+                out.write(ruleSet.getName() + ".level");
+                out.write(',');
+                out.write(ruleSet.getName() + ".reward");
+            }
+            out.write('\n');
+            for (int partner = 0; partner < n; partner++) {
+                int position = tree.getPositionByIndex(partner);
+                out.write(Long.toString(tree.getPartnerId(position)));
+                for (int r = 0; r < numRules; r++) {
+                    int at = position * numRules + columns[r];
+                    out.write(',');
+                    out.write(LEVELS[run.levels[at]].name());
+                    out.write(',');
+                    out.write(Long.toString(run.rewards[at]));
+                    totals[r] += run.rewards[at];
+                    levelCounts[r][run.levels[at]]++;
+                }
+                out.write('\n');
+            }
+        });
+
+        StringBuilder res = new StringBuilder();
+        for (int r = 0; r < numRules; r++) {
+            res.append(rules.get(r).getName()).append(": total reward ").append(totals[r]);
+            for (RewardLevel level : LEVELS) {
+                res.append(", ").append(level.name()).append(' ').append(levelCounts[r][level.ordinal()]);
+            }
+            if (r < numRules - 1) {
+                res.append('\n');
+            }
+        }
+        return res.toString();
+    }
+}
@@ -2,14 +2,20 @@ package com.project.reward.simulator.data;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 public class Partner {
     private Long Id;
 
+    // Dense index given at registration, used by the primitive contract store
+    private int index;
+
+    private Partner parent;
+
+    // Created with the first child, most partners don't have any
     private List<Partner> children;
 
     public Partner() {
-        children = new ArrayList<>();
     }
 
     public Long getId() {
@@ -20,11 +26,30 @@ public class Partner {
         Id = id;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public Partner getParent() {
+        return parent;
+    }
+
     public Partner[] getChildren() {
+        if (Objects.isNull(this.children)) {
+            return new Partner[0];
+        }
         return this.children.toArray(new Partner[0]);
     }
 
     public void addChild(Partner child) {
+        child.parent = this;
+        if (Objects.isNull(this.children)) {
+            this.children = new ArrayList<>(4);
+        }
         this.children.add(child);
     }
 }